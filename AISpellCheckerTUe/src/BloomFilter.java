@@ -0,0 +1,95 @@
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter over 64-bit keys, e.g. hashes of strings that are never
+ * built: mightContain is false for most keys that were never added and
+ * always true for the ones that were.
+ *
+ * A query costs a few bit reads in an array of about 10 bits per key,
+ * instead of a probe in a large hash table. The bits can be written to a
+ * file and mapped back, see DeleteIndex.compile.
+ *
+ * @author Tijs
+ */
+public class BloomFilter {
+
+    final private LongBuffer bits;
+    final private long mask;
+    final private int hashes;
+
+    /**
+     * @param expected the number of keys that will be added
+     * @param falsePositives the wanted rate of false positives, e.g. 0.01
+     */
+    public BloomFilter(int expected, double falsePositives) {
+        double optimal = -Math.max(expected, 1) * Math.log(falsePositives) / (Math.log(2) * Math.log(2));
+        // a power of two, so a position is a mask instead of a division
+        long size = Long.highestOneBit(Math.max(64L, (long) optimal - 1)) << 1;
+        bits = LongBuffer.wrap(new long[(int) (size / 64)]);
+        mask = size - 1;
+        hashes = Math.max(1, (int) Math.round(optimal / Math.max(expected, 1) * Math.log(2)));
+    }
+
+    /**
+     * Uses the bits of a filter written with getBits, e.g. mapped from a file
+     *
+     * @param bits a power of two number of longs
+     * @param hashes the getHashes of the filter
+     */
+    public BloomFilter(LongBuffer bits, int hashes) {
+        this.bits = bits;
+        this.mask = 64L * bits.capacity() - 1;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Returns a read-only view of the bits
+     */
+    public LongBuffer getBits() {
+        return bits.asReadOnlyBuffer();
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    public void add(long key) {
+        set(mix(key));
+    }
+
+    public boolean mightContain(long key) {
+        return test(mix(key));
+    }
+
+    private void set(long hash) {
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long position = (h1 + i * h2) & mask;
+            int word = (int) (position >>> 6);
+            bits.put(word, bits.get(word) | 1L << position);
+        }
+    }
+
+    private boolean test(long hash) {
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long position = (h1 + i * h2) & mask;
+            if ((bits.get((int) (position >>> 6)) & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // fmix64, the finalizer of MurmurHash3, spreads the bits of the key over all 64
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,423 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only n-gram counts in a few bytes per n-gram, for count files that do
+ * not fit in a HashNGramStore.
+ *
+ * Bigrams and trigrams are sorted by their tuple of word ids, packed in a
+ * long. The sorted keys are cut into blocks of BLOCK_SIZE: the first key of
+ * every block is kept in an array that is binary searched, the other keys
+ * as varint-encoded differences to the key before them, which are mostly
+ * one or two bytes. The blocks of every first word are indexed, so the
+ * binary search only covers the blocks of one word. Every count is one
+ * byte: counts up to 127 exactly, larger ones on a log scale with steps of
+ * about 14%, so a count is off by at most 7%. Unigram counts are exact.
+ *
+ * Bigram word ids must be below 2^27. Trigrams with word ids of 2^21 or
+ * more and n-grams of more than three words are kept in a string map, like
+ * in HashNGramStore.
+ *
+ * @author Tijs
+ */
+public class CompressedNGramStore implements NGramStore {
+
+    final static int BLOCK_SIZE = 32;
+    final static int BIGRAM_ID_BITS = 27;
+    final static int TRIGRAM_ID_BITS = 21;
+    final static int MAX_TRIGRAM_ID = (1 << TRIGRAM_ID_BITS) - 1;
+
+    // the count of every one-byte code
+    final static int[] LEVELS = new int[256];
+    // factor between the counts of two codes above 127
+    final static double STEP = Math.pow(2.0, 24.0 / 128.0);
+
+    static {
+        for (int q = 0; q < 256; q++) {
+            LEVELS[q] = q < 128 ? q : (int) Math.min(Integer.MAX_VALUE, Math.round(127 * Math.pow(STEP, q - 127)));
+        }
+    }
+
+    final private HashMap<String, Integer> wordIds;
+    final private String[] words;
+    final private int[] unigrams;
+    final private int unigramCount;
+    final private BlockTable bigrams;
+    final private BlockTable trigrams;
+    final private HashMap<String, Integer> longerNGrams;
+
+    private CompressedNGramStore(Builder builder, BlockTable bigrams, BlockTable trigrams,
+            HashMap<String, Integer> longerNGrams) {
+        this.wordIds = builder.wordIds;
+        this.words = builder.words.toArray(new String[0]);
+        this.unigrams = Arrays.copyOf(builder.unigrams, words.length);
+        this.unigramCount = builder.seenUnigrams.cardinality();
+        this.bigrams = bigrams;
+        this.trigrams = trigrams;
+        this.longerNGrams = longerNGrams;
+    }
+
+    /**
+     * Returns the one-byte code of a count
+     *
+     * @param count
+     * @return
+     */
+    static int quantize(int count) {
+        if (count < 128) {
+            return Math.max(count, 0);
+        }
+        int q = 127 + (int) Math.round(Math.log(count / 127.0) / Math.log(STEP));
+        return Math.min(q, 255);
+    }
+
+    static long bigramKey(int id1, int id2) {
+        return ((long) id1 << BIGRAM_ID_BITS) | id2;
+    }
+
+    static long trigramKey(int u, int v, int w) {
+        return ((long) u << (2 * TRIGRAM_ID_BITS)) | ((long) v << TRIGRAM_ID_BITS) | w;
+    }
+
+    @Override
+    public int getWordId(String word) {
+        Integer id = wordIds.get(word);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public String getWord(int wordId) {
+        return words[wordId];
+    }
+
+    @Override
+    public int getWordCount() {
+        return words.length;
+    }
+
+    @Override
+    public int getCount(int wordId) {
+        return wordId < 0 ? 0 : unigrams[wordId];
+    }
+
+    @Override
+    public int getCount(int id1, int id2) {
+        if (id1 < 0 || id2 < 0) {
+            return 0;
+        }
+        int code = bigrams.get(bigramKey(id1, id2));
+        return code < 0 ? 0 : LEVELS[code];
+    }
+
+    @Override
+    public int getCount(String nGram) {
+        String[] parts = nGram.split(" ");
+        if (parts.length == 3) {
+            int u = getWordId(parts[0]);
+            int v = getWordId(parts[1]);
+            int w = getWordId(parts[2]);
+            if (u >= 0 && v >= 0 && w >= 0 && Math.max(u, Math.max(v, w)) <= MAX_TRIGRAM_ID) {
+                int code = trigrams.get(trigramKey(u, v, w));
+                return code < 0 ? 0 : LEVELS[code];
+            }
+        }
+        Integer value = longerNGrams.get(nGram);
+        return value == null ? 0 : value;
+    }
+
+    @Override
+    public int size() {
+        return unigramCount + bigrams.size + trigrams.size + longerNGrams.size();
+    }
+
+    @Override
+    public long getHeapSize() {
+        return wordIds.size() * (ENTRY_BYTES + STRING_BYTES + 4) + 4L * unigrams.length
+                + bigrams.getHeapSize() + trigrams.getHeapSize() + longerNGrams.size() * (ENTRY_BYTES + STRING_BYTES);
+    }
+
+    @Override
+    public void forEachNGram(NGramVisitor visitor) {
+        long mask = (1L << BIGRAM_ID_BITS) - 1;
+        bigrams.forEach((key, code) -> visitor.bigram((int) (key >>> BIGRAM_ID_BITS), (int) (key & mask), LEVELS[code]));
+        trigrams.forEach((key, code) -> visitor.nGram(words[(int) (key >>> (2 * TRIGRAM_ID_BITS))] + " "
+                + words[(int) ((key >>> TRIGRAM_ID_BITS) & MAX_TRIGRAM_ID)] + " "
+                + words[(int) (key & MAX_TRIGRAM_ID)], LEVELS[code]));
+        for (Map.Entry<String, Integer> entry : longerNGrams.entrySet()) {
+            visitor.nGram(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the bytes used by the bigrams and trigrams, without the words
+     *
+     * @return
+     */
+    public long getEncodedSize() {
+        return bigrams.getEncodedSize() + trigrams.getEncodedSize();
+    }
+
+    /**
+     * Collects the counts while the text files are read. Bigrams are
+     * collected as longs of their key and count code in the order they are
+     * put. A repeated n-gram keeps the count put last, as in HashNGramStore.
+     */
+    static class Builder implements NGramStoreBuilder {
+
+        final private HashMap<String, Integer> wordIds = new HashMap<>();
+        final private List<String> words = new ArrayList<>();
+        private int[] unigrams = new int[1024];
+        final private BitSet seenUnigrams = new BitSet();
+        // key << 8 | count code
+        private long[] bigrams = new long[1024];
+        private int bigramCount = 0;
+        // resolved to ids in build, when all words have their id
+        final private HashMap<String, Integer> longerNGrams = new HashMap<>();
+
+        @Override
+        public int internWord(String word) {
+            Integer id = wordIds.get(word);
+            if (id == null) {
+                id = words.size();
+                if (id >= (1 << BIGRAM_ID_BITS)) {
+                    throw new IllegalArgumentException("more than 2^" + BIGRAM_ID_BITS + " words.");
+                }
+                wordIds.put(word, id);
+                words.add(word);
+                if (id == unigrams.length) {
+                    unigrams = Arrays.copyOf(unigrams, unigrams.length * 2);
+                }
+            }
+            return id;
+        }
+
+        @Override
+        public void put(String nGram, int count) {
+            int space = nGram.indexOf(' ');
+            if (space == -1) {
+                int id = internWord(nGram);
+                unigrams[id] = count;
+                seenUnigrams.set(id);
+            } else if (nGram.indexOf(' ', space + 1) == -1) {
+                int id1 = internWord(nGram.substring(0, space));
+                int id2 = internWord(nGram.substring(space + 1));
+                if (bigramCount == bigrams.length) {
+                    bigrams = Arrays.copyOf(bigrams, bigramCount * 2);
+                }
+                bigrams[bigramCount++] = (bigramKey(id1, id2) << 8) | quantize(count);
+            } else {
+                longerNGrams.put(nGram, count);
+            }
+        }
+
+        @Override
+        public CompressedNGramStore build() {
+            sortByKey(bigrams, bigramCount);
+            // equal keys are in the order they were put, keep the last
+            int n = 0;
+            for (int i = 0; i < bigramCount; i++) {
+                if (n > 0 && (bigrams[n - 1] >>> 8) == (bigrams[i] >>> 8)) {
+                    n--;
+                }
+                bigrams[n++] = bigrams[i];
+            }
+            long[] bigramKeys = new long[n];
+            byte[] bigramCodes = new byte[n];
+            for (int i = 0; i < n; i++) {
+                bigramKeys[i] = bigrams[i] >>> 8;
+                bigramCodes[i] = (byte) bigrams[i];
+            }
+            bigrams = null;
+
+            LongIntHashMap trigramCounts = new LongIntHashMap();
+            HashMap<String, Integer> remaining = new HashMap<>();
+            for (Map.Entry<String, Integer> entry : longerNGrams.entrySet()) {
+                String[] parts = entry.getKey().split(" ");
+                Integer u = parts.length == 3 ? wordIds.get(parts[0]) : null;
+                Integer v = parts.length == 3 ? wordIds.get(parts[1]) : null;
+                Integer w = parts.length == 3 ? wordIds.get(parts[2]) : null;
+                if (u != null && v != null && w != null && Math.max(u, Math.max(v, w)) <= MAX_TRIGRAM_ID) {
+                    trigramCounts.put(trigramKey(u, v, w), quantize(entry.getValue()));
+                } else {
+                    remaining.put(entry.getKey(), entry.getValue());
+                }
+            }
+            long[] trigramKeys = trigramCounts.keys();
+            Arrays.sort(trigramKeys);
+            byte[] trigramCodes = new byte[trigramKeys.length];
+            for (int i = 0; i < trigramKeys.length; i++) {
+                trigramCodes[i] = (byte) trigramCounts.get(trigramKeys[i], 0);
+            }
+
+            return new CompressedNGramStore(this, new BlockTable(bigramKeys, bigramCodes, BIGRAM_ID_BITS),
+                    new BlockTable(trigramKeys, trigramCodes, 2 * TRIGRAM_ID_BITS), remaining);
+        }
+
+        // Stable merge sort of the first n values by their key (value >>> 8), not by their count code.
+        private static void sortByKey(long[] values, int n) {
+            long[] from = values;
+            long[] to = new long[n];
+            for (int width = 1; width < n; width *= 2) {
+                for (int start = 0; start < n; start += 2 * width) {
+                    int middle = Math.min(start + width, n);
+                    int end = Math.min(start + 2 * width, n);
+                    int i = start;
+                    int j = middle;
+                    for (int k = start; k < end; k++) {
+                        // on equal keys the left run, which was put first, goes first
+                        if (j >= end || (i < middle && (from[i] >>> 8) <= (from[j] >>> 8))) {
+                            to[k] = from[i++];
+                        } else {
+                            to[k] = from[j++];
+                        }
+                    }
+                }
+                long[] swap = from;
+                from = to;
+                to = swap;
+            }
+            if (from != values) {
+                System.arraycopy(from, 0, values, 0, n);
+            }
+        }
+    }
+
+    interface EntryVisitor {
+
+        void entry(long key, int code);
+    }
+
+    /**
+     * Sorted distinct non-negative keys with a count code each, see the class
+     * comment.
+     */
+    static class BlockTable {
+
+        final int size;
+        // first key and offset in data of the second key, per block
+        final private long[] firstKeys;
+        final private int[] offsets;
+        final private byte[] data;
+        final private byte[] codes;
+        // the first word of a key is key >>> shift, wordBlocks[word] is the first block starting at that word or later
+        final private int shift;
+        final private int[] wordBlocks;
+
+        BlockTable(long[] sortedKeys, byte[] codes, int shift) {
+            this.size = sortedKeys.length;
+            this.codes = codes;
+            this.shift = shift;
+            int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            firstKeys = new long[blocks];
+            offsets = new int[blocks];
+            byte[] bytes = new byte[Math.max(16, size * 2)];
+            int length = 0;
+            for (int i = 0; i < size; i++) {
+                if (i % BLOCK_SIZE == 0) {
+                    firstKeys[i / BLOCK_SIZE] = sortedKeys[i];
+                    offsets[i / BLOCK_SIZE] = length;
+                    continue;
+                }
+                if (length + 10 > bytes.length) {
+                    if (bytes.length > Integer.MAX_VALUE / 2) {
+                        throw new IllegalArgumentException("too many n-grams for one table.");
+                    }
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                // varint: 7 bits per byte, the high bit set on all but the last byte
+                long delta = sortedKeys[i] - sortedKeys[i - 1];
+                while (delta >= 0x80) {
+                    bytes[length++] = (byte) (delta | 0x80);
+                    delta >>>= 7;
+                }
+                bytes[length++] = (byte) delta;
+            }
+            data = Arrays.copyOf(bytes, length);
+
+            int words = size == 0 ? 0 : (int) (sortedKeys[size - 1] >>> shift) + 1;
+            wordBlocks = new int[words + 1];
+            int block = 0;
+            for (int word = 0; word <= words; word++) {
+                while (block < blocks && (firstKeys[block] >>> shift) < word) {
+                    block++;
+                }
+                wordBlocks[word] = block;
+            }
+        }
+
+        long getHeapSize() {
+            return 8L * firstKeys.length + 4L * offsets.length + data.length + codes.length + 4L * wordBlocks.length;
+        }
+
+        /**
+         * Returns the count code of key, -1 if it is not in the table
+         */
+        int get(long key) {
+            int word = (int) (key >>> shift);
+            if (word >= wordBlocks.length - 1 || key < firstKeys[0]) {
+                return -1;
+            }
+            // the last block whose first key is at most key, which is a block of the word or the one before them
+            int lo = Math.max(0, wordBlocks[word] - 1);
+            int hi = wordBlocks[word + 1] - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (firstKeys[mid] <= key) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            int entry = lo * BLOCK_SIZE;
+            int end = Math.min(size, entry + BLOCK_SIZE);
+            long k = firstKeys[lo];
+            int pos = offsets[lo];
+            while (true) {
+                if (k == key) {
+                    return codes[entry] & 0xff;
+                }
+                if (k > key || ++entry == end) {
+                    return -1;
+                }
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                k += delta;
+            }
+        }
+
+        void forEach(EntryVisitor visitor) {
+            int pos = 0;
+            long k = 0;
+            for (int i = 0; i < size; i++) {
+                if (i % BLOCK_SIZE == 0) {
+                    k = firstKeys[i / BLOCK_SIZE];
+                } else {
+                    long delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data[pos++];
+                        delta |= (long) (b & 0x7f) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    k += delta;
+                }
+                visitor.entry(k, codes[i] & 0xff);
+            }
+        }
+
+        long getEncodedSize() {
+            return firstKeys.length * 12L + wordBlocks.length * 4L + data.length + codes.length;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Upper bounds of the add-one smoothed bigram counts, used to decide which
+ * words of a sentence could be replaced at all.
+ *
+ * For every word a it keeps the highest smoothed count any word can have
+ * after a, and for every word b the highest smoothed count any word can
+ * have before b. The gain of replacing a word between a and b, see
+ * SpellCorrector.calculateCorrectionScore, can then be bounded without
+ * generating a single candidate: the candidates are words too, so none of
+ * them can do better than these maxima.
+ *
+ * The bounds are one buffer, see computeBounds, that ModelCompiler writes
+ * into model.bin, so a compiled model maps them instead of taking a pass over
+ * its bigrams. Layout: double bound after and double bound before the
+ * unknown word, then per word id the bound after it, then per word id the
+ * bound before it.
+ *
+ * @author Tijs
+ */
+public class ConfidenceGate {
+
+    final private static int HEADER_SIZE = 16;
+
+    final private double margin;
+    final private ByteBuffer bounds;
+    final private int beforeAt;
+    // for the unknown word (-1)
+    final private double maxAfterUnknown;
+    final private double maxBeforeUnknown;
+
+    /**
+     * Uses the bounds of a compiled model, or computes them, see
+     * CorpusReader.getGateBounds
+     *
+     * @param cr
+     * @param margin the gain an alternative must be able to reach for its word to be searched
+     */
+    public ConfidenceGate(CorpusReader cr, double margin) {
+        this(cr.getGateBounds(), margin);
+    }
+
+    /**
+     * @param bounds written by computeBounds, e.g. mapped from a model file
+     * @param margin the gain an alternative must be able to reach for its word to be searched
+     */
+    public ConfidenceGate(ByteBuffer bounds, double margin) {
+        this.margin = margin;
+        this.bounds = bounds;
+        beforeAt = HEADER_SIZE + 8 * ((bounds.capacity() - HEADER_SIZE) / 16);
+        maxAfterUnknown = bounds.getDouble(0);
+        maxBeforeUnknown = bounds.getDouble(8);
+    }
+
+    /**
+     * Computes the bounds of the counts of cr, in one pass over its bigrams
+     * or with the maxima of the store, see NGramStore.raiseBigramMaxima
+     *
+     * @param cr
+     * @return the buffer described in the class comment
+     */
+    static ByteBuffer computeBounds(CorpusReader cr) {
+        NGramStore store = cr.getNGramStore();
+        int words = store.getWordCount();
+        double[] maxAfter = new double[words];
+        double[] maxBefore = new double[words];
+
+        // a word that never precedes b gets 1 / (count + size), which is highest for the rarest word
+        int rarest = -1;
+        for (int id = 0; id < words; id++) {
+            maxAfter[id] = cr.smooth(id, 0);
+            if (rarest == -1 || cr.getNGramCount(id) < cr.getNGramCount(rarest)) {
+                rarest = id;
+            }
+        }
+        double notBefore = cr.smooth(rarest, 0);
+        for (int id = 0; id < words; id++) {
+            maxBefore[id] = notBefore;
+        }
+        store.raiseBigramMaxima(maxAfter, maxBefore);
+
+        ByteBuffer bounds = ByteBuffer.allocate(HEADER_SIZE + 16 * words);
+        bounds.putDouble(cr.smooth(-1, 0)).putDouble(notBefore);
+        bounds.asDoubleBuffer().put(maxAfter).put(maxBefore);
+        bounds.rewind();
+        return bounds;
+    }
+
+    /**
+     * Returns the bytes of the bounds on the heap, 0 when they are mapped
+     */
+    public long getHeapSize() {
+        return bounds.isDirect() ? 0 : bounds.capacity();
+    }
+
+    public double getMargin() {
+        return margin;
+    }
+
+    /**
+     * Returns the highest smoothed count of id and any word after it
+     */
+    public double getMaxAfter(int id) {
+        return id < 0 ? maxAfterUnknown : bounds.getDouble(HEADER_SIZE + 8 * id);
+    }
+
+    /**
+     * Returns the highest smoothed count of any word and id after it
+     */
+    public double getMaxBefore(int id) {
+        return id < 0 ? maxBeforeUnknown : bounds.getDouble(beforeAt + 8 * id);
+    }
+}
@@ -2,53 +2,164 @@
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+// ConfusionMatrixReader is never modified after construction, so it can be shared between threads.
+// The counts are kept in dense arrays indexed by character, so the lookups of
+// the channel model do not build any key strings.
 public class ConfusionMatrixReader {
     
     final static String DATAFILE_LOC = "confusion_matrix.txt";
-    final private HashMap<String,Integer> confusionMatrix = new HashMap<>();
+    final private Map<String,Integer> confusionMatrix;
     final private HashMap<String,Integer> countMatrix = new HashMap<>();
+    
+    // index of every character in the matrix, 0 for characters that are not in it
+    final private char[] charIndex = new char[Character.MAX_VALUE + 1];
+    // number of character indexes, including 0
+    final private int size;
+    // x|y, indexed x*size+y
+    final private int[] substitutions;
+    // xy|x or xy|y, indexed (x*size+y)*size+correct
+    final private int[] insertions;
+    // x|xy or y|xy, indexed (error*size+x)*size+y
+    final private int[] deletions;
+    // xy|yx, indexed x*size+y
+    final private int[] transpositions;
+    // pairs of any other shape, e.g. with an empty side
+    final private HashMap<String,Integer> otherCounts = new HashMap<>();
+    
     public ConfusionMatrixReader() 
     {
-        try {
-            readConfusionMatrix();
-        } catch (Exception ex) {
-            Logger.getLogger(ConfusionMatrixReader.class.getName()).log(Level.SEVERE, null, ex);
+        this(DATAFILE_LOC);
+    }
+    
+    /**
+     * Reads the confusion matrix of another file, e.g. of another language
+     * 
+     * @param file : lines of "<error>|<correct> <count>"
+     */
+    public ConfusionMatrixReader(String file) 
+    {
+        this(readConfusionMatrix(file));
+    }
+    
+    /**
+     * Uses the confusion matrix of a compiled model, see ModelCompiler
+     * 
+     * @param model 
+     */
+    public ConfusionMatrixReader(MappedModel model)
+    {
+        this(model.getConfusionMatrix());
+    }
+    
+    private ConfusionMatrixReader(Map<String,Integer> confusionMatrix)
+    {
+        this.confusionMatrix = confusionMatrix;
+        for (Map.Entry<String,Integer> entry : confusionMatrix.entrySet()) {
+            addCount(entry.getKey(), entry.getValue());
+        }
+        size = indexCharacters();
+        substitutions = new int[size * size];
+        insertions = new int[size * size * size];
+        deletions = new int[size * size * size];
+        transpositions = new int[size * size];
+        fillArrays();
+    }
+    
+    // Gives every character of the matrix an index, returns the number of indexes.
+    private int indexCharacters()
+    {
+        int next = 1;
+        for (String keys : confusionMatrix.keySet()) {
+            for (int i = 0; i < keys.length(); i++) {
+                char c = keys.charAt(i);
+                if (charIndex[c] == 0) {
+                    charIndex[c] = (char) next++;
+                }
+            }
+        }
+        return next;
+    }
+    
+    private void fillArrays()
+    {
+        for (Map.Entry<String,Integer> entry : confusionMatrix.entrySet()) {
+            String keys = entry.getKey();
+            int bar = keys.indexOf('|');
+            String error = keys.substring(0, bar);
+            String correct = keys.substring(bar + 1);
+            int count = entry.getValue();
+            
+            if (error.length() == 1 && correct.length() == 1) {
+                substitutions[index(error.charAt(0), correct.charAt(0))] = count;
+            } else if (error.length() == 2 && correct.length() == 1) {
+                insertions[index(error.charAt(0), error.charAt(1), correct.charAt(0))] = count;
+            } else if (error.length() == 1 && correct.length() == 2) {
+                deletions[index(error.charAt(0), correct.charAt(0), correct.charAt(1))] = count;
+            } else if (error.length() == 2 && correct.length() == 2 
+                    && error.charAt(0) == correct.charAt(1) && error.charAt(1) == correct.charAt(0)) {
+                transpositions[index(error.charAt(0), error.charAt(1))] = count;
+            } else {
+                otherCounts.put(keys, count);
+            }
         }
     }
     
-    private void readConfusionMatrix() 
-            throws FileNotFoundException, IOException
-    {
-        FileInputStream fis;
-        fis = new FileInputStream(DATAFILE_LOC);
-        BufferedReader in = new BufferedReader(new InputStreamReader(fis));
-        
-        while( in.ready() )
-        {
-            String line = in.readLine();
-            int space = line.lastIndexOf(' ');
-            String keys = line.substring(0,space);
-            try {
-                int count = Integer.parseInt(line.substring(space+1));
-                confusionMatrix.put(keys, count);
+    private int index(char x, char y)
+    {
+        return charIndex[x] * size + charIndex[y];
+    }
+    
+    private int index(char x, char y, char z)
+    {
+        return (charIndex[x] * size + charIndex[y]) * size + charIndex[z];
+    }
+    
+    private static Map<String,Integer> readConfusionMatrix(String file) 
+    {
+        HashMap<String,Integer> confusionMatrix = new HashMap<>();
+        try {
+            FileInputStream fis;
+            fis = new FileInputStream(file);
+            BufferedReader in = new BufferedReader(new InputStreamReader(fis));
 
-                String key = keys.substring(0,keys.indexOf('|'));  
-                Integer value = countMatrix.get(key);
-                if (value==null) {
-                    value = 0;
+            while( in.ready() )
+            {
+                String line = in.readLine();
+                int space = line.lastIndexOf(' ');
+                String keys = line.substring(0,space);
+                try {
+                    int count = Integer.parseInt(line.substring(space+1));
+                    confusionMatrix.put(keys, count);
+                } catch(NumberFormatException e) {
+                    System.err.println("problems with string <"+line+">");
                 }
-                countMatrix.put(key, value+count);
-            } catch(NumberFormatException e) {
-                System.err.println("problems with string <"+line+">");
             }
+        } catch (Exception ex) {
+            Logger.getLogger(ConfusionMatrixReader.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return confusionMatrix;
+    }
+    
+    private void addCount(String keys, int count)
+    {
+        String key = keys.substring(0,keys.indexOf('|'));  
+        Integer value = countMatrix.get(key);
+        if (value==null) {
+            value = 0;
         }
+        countMatrix.put(key, value+count);
+    }
+    
+    // Gives the model compiler access to the matrix.
+    Map<String,Integer> getConfusionMatrix()
+    {
+        return confusionMatrix;
     }
     
     /**
@@ -62,9 +173,60 @@ public class ConfusionMatrixReader {
     public int getConfusionCount(String error, String correct) 
     {
         // AVG: 41
-        Integer count = confusionMatrix.get(error+"|"+correct);
         // returns probibility of error given correct
         // slide 34, NLP 2
+        if (error.length() == 1 && correct.length() == 1) {
+            return getSubstitutionCount(error.charAt(0), correct.charAt(0));
+        } else if (error.length() == 2 && correct.length() == 1) {
+            return getInsertionCount(error.charAt(0), error.charAt(1), correct.charAt(0));
+        } else if (error.length() == 1 && correct.length() == 2) {
+            return getDeletionCount(error.charAt(0), correct.charAt(0), correct.charAt(1));
+        } else if (error.length() == 2 && correct.length() == 2) {
+            return getConfusionCount(error.charAt(0), error.charAt(1), correct.charAt(0), correct.charAt(1));
+        }
+        Integer count = otherCounts.get(error+"|"+correct);
+        return count==null?0:count;
+    }
+    
+    /**
+     * Returns the count of <error>|<correct>, e.g. "e|i" is 917
+     */
+    public int getSubstitutionCount(char error, char correct)
+    {
+        return substitutions[index(error, correct)];
+    }
+    
+    /**
+     * Returns the count of <error1><error2>|<correct>, where a letter was
+     * typed too many, e.g. "ee|e" for error1 = error2 = correct = 'e'
+     */
+    public int getInsertionCount(char error1, char error2, char correct)
+    {
+        return insertions[index(error1, error2, correct)];
+    }
+    
+    /**
+     * Returns the count of <error>|<correct1><correct2>, where a letter was
+     * left out, e.g. "c|ct" is 36
+     */
+    public int getDeletionCount(char error, char correct1, char correct2)
+    {
+        return deletions[index(error, correct1, correct2)];
+    }
+    
+    /**
+     * Returns the count of <error1><error2>|<correct1><correct2>, which is
+     * non-zero for transpositions like "ie|ei"
+     */
+    public int getConfusionCount(char error1, char error2, char correct1, char correct2)
+    {
+        if (error1 == correct2 && error2 == correct1) {
+            return transpositions[index(error1, error2)];
+        }
+        if (otherCounts.isEmpty()) {
+            return 0;
+        }
+        Integer count = otherCounts.get(new String(new char[]{error1, error2, '|', correct1, correct2}));
         return count==null?0:count;
     }
 }
@@ -1,25 +1,80 @@
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.logging.Logger;
 
 // CorpusReader provides auxilliary functionality.
+// Its counts are never modified after construction, so it can be shared between threads.
 public class CorpusReader 
 {
     final static String CNTFILE_LOC = "samplecnt.txt";
     final static String VOCFILE_LOC = "samplevoc.txt";
+    // -Dspellchecker.store=compressed keeps the counts in a CompressedNGramStore
+    final static String STORE = System.getProperty("spellchecker.store", "hash");
     
-    private HashMap<String,Integer> ngrams;
-    private Set<String> vocabulary;
+    final private NGramStore ngrams;
+    final private Set<String> vocabulary;
+    // the compiled model the counts are mapped from, null otherwise
+    final private MappedModel model;
+    // built on first use, see getKneserNeyModel
+    private volatile KneserNeyModel kneserNey;
         
     public CorpusReader() throws IOException
     {  
-        readNGrams();
-        readVocabulary();
+        this(CNTFILE_LOC, VOCFILE_LOC);
+    }
+    
+    /**
+     * Reads the counts and vocabulary of other files, e.g. of another
+     * language or domain
+     * 
+     * @param countFile : lines of "<count> <n-gram>"
+     * @param vocabularyFile : one word per line
+     * @throws IOException 
+     */
+    public CorpusReader(String countFile, String vocabularyFile) throws IOException
+    {  
+        NGramStoreBuilder builder;
+        switch (STORE) {
+            case "hash":
+                builder = new HashNGramStore();
+                break;
+            case "compressed":
+                builder = new CompressedNGramStore.Builder();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown n-gram store " + STORE);
+        }
+        readNGrams(countFile, builder);
+        vocabulary = readVocabulary(vocabularyFile, builder);
+        ngrams = builder.build();
+        model = null;
+    }
+    
+    /**
+     * Uses the counts and vocabulary of a compiled model, see ModelCompiler
+     * 
+     * @param model 
+     */
+    public CorpusReader(MappedModel model)
+    {
+        ngrams = model;
+        vocabulary = model.getVocabulary();
+        this.model = model;
+    }
+    
+    /**
+     * Uses the counts of shard servers, see NGramShardServer
+     * 
+     * @param store 
+     */
+    public CorpusReader(ShardedNGramStore store)
+    {
+        ngrams = store;
+        vocabulary = store.getVocabulary();
+        model = null;
     }
     
     /**
@@ -36,48 +91,181 @@ public class CorpusReader
         {
             throw new IllegalArgumentException("NGram must be non-empty.");
         }
-        Integer value = ngrams.get(nGram);
-        return value==null?0:value;
+        int space = nGram.indexOf(' ');
+        if(space == -1)
+        {
+            return getNGramCount(getWordId(nGram));
+        }
+        if(nGram.indexOf(' ', space + 1) == -1)
+        {
+            return getNGramCount(getWordId(nGram.substring(0, space)), 
+                    getWordId(nGram.substring(space + 1)));
+        }
+        return ngrams.getCount(nGram);
     }
     
-    private void readNGrams() throws 
-            FileNotFoundException, IOException, NumberFormatException
+    /**
+     * Returns the count of the word with id <wordId> in the file
+     * 
+     * @param wordId : id from getWordId, -1 for an unknown word
+     * @return 0 if the word cannot be found, otherwise its count
+     */
+    public int getNGramCount(int wordId)
     {
-        ngrams = new HashMap<>();
-
-        FileInputStream fis;
-        fis = new FileInputStream(CNTFILE_LOC);
-        BufferedReader in = new BufferedReader(new InputStreamReader(fis));
-
-        while (in.ready()) {
-            String phrase = in.readLine().trim();
-            String s1, s2;
-            int j = phrase.indexOf(" ");
-
-            s1 = phrase.substring(0, j);
-            s2 = phrase.substring(j + 1, phrase.length());
-
-            int count = 0;
-            try {
-                count = Integer.parseInt(s1);
-                ngrams.put(s2, count);
-            } catch (NumberFormatException nfe) {
-                throw new NumberFormatException("NumberformatError: " + s1);
+        return ngrams.getCount(wordId);
+    }
+    
+    /**
+     * Returns the count of the bigram <id1> <id2> in the file
+     * 
+     * @param id1 : id of the first word, -1 for an unknown word
+     * @param id2 : id of the second word, -1 for an unknown word
+     * @return 0 if the bigram cannot be found, otherwise its count
+     */
+    public int getNGramCount(int id1, int id2)
+    {
+        return ngrams.getCount(id1, id2);
+    }
+    
+    /**
+     * Returns the id of a word in the count file or the vocabulary
+     * 
+     * @param word
+     * @return the id, or -1 if the word is unknown
+     */
+    public int getWordId(String word)
+    {
+        return ngrams.getWordId(word);
+    }
+    
+    /**
+     * Returns the Kneser-Ney tables of the counts. They are computed by the
+     * first call, which takes a pass over all n-grams, and shared after that.
+     * 
+     * @return 
+     * @throws IllegalStateException for counts on shard servers, which would
+     * all have to be streamed here
+     */
+    public KneserNeyModel getKneserNeyModel()
+    {
+        if (ngrams.isRemote()) {
+            throw new IllegalStateException("Kneser-Ney smoothing needs every n-gram in this process, "
+                    + "which defeats -Dspellchecker.shards; use -Dspellchecker.smoothing=add-one with shard servers");
+        }
+        KneserNeyModel model = kneserNey;
+        if (model == null) {
+            synchronized (this) {
+                model = kneserNey;
+                if (model == null) {
+                    model = new KneserNeyModel(ngrams, vocabulary.size());
+                    kneserNey = model;
+                }
             }
         }
+        return model;
+    }
+    
+    /**
+     * Estimates the bytes of the counts, the vocabulary and the Kneser-Ney
+     * tables on the heap, see NGramStore.getHeapSize
+     * 
+     * @return 
+     */
+    public long getHeapSize()
+    {
+        // a compiled model and the shard client keep the vocabulary in their store
+        long words = (model == null && !ngrams.isRemote()) ? vocabulary.size() * NGramStore.ENTRY_BYTES : 0;
+        KneserNeyModel tables = kneserNey;
+        return ngrams.getHeapSize() + words + (tables == null ? 0 : tables.getHeapSize());
     }
     
+    /**
+     * Returns the bytes of the counts that are outside the heap, e.g. of a
+     * memory-mapped model
+     * 
+     * @return 
+     */
+    public long getOffHeapSize()
+    {
+        return ngrams.getOffHeapSize();
+    }
     
-    private void readVocabulary() throws FileNotFoundException, IOException {
-        vocabulary = new HashSet<>();
-        
-        FileInputStream fis = new FileInputStream(VOCFILE_LOC);
-        BufferedReader in = new BufferedReader(new InputStreamReader(fis));
+    /**
+     * Returns the symmetric-delete index of the vocabulary, mapped from a
+     * compiled model or built now
+     * 
+     * @param alphabet the letters that may be inserted or substituted
+     * @return 
+     */
+    public DeleteIndex getDeleteIndex(char[] alphabet)
+    {
+        return model != null ? model.getDeleteIndex(alphabet) : new DeleteIndex(vocabulary, alphabet);
+    }
+    
+    /**
+     * Returns the bounds of a ConfidenceGate, mapped from a compiled model or
+     * computed now
+     * 
+     * @return 
+     */
+    ByteBuffer getGateBounds()
+    {
+        return model != null ? model.getGateBounds() : ConfidenceGate.computeBounds(this);
+    }
+    
+    // Gives the model compiler access to the counts.
+    NGramStore getNGramStore()
+    {
+        return ngrams;
+    }
+    
+    // The files are parsed in parallel, see ParallelLineReader, and merged in file order.
+    private void readNGrams(String file, NGramStoreBuilder store) throws IOException
+    {
+        ParallelLineReader.read(file, CorpusReader::parseCountLine, chunk -> {
+            for (int i = 0; i < chunk.size(); i++) {
+                store.put(chunk.getKey(i), chunk.getValue(i));
+            }
+            reportProblems(file, chunk);
+        });
+    }
+    
+    // A line of the count file is "<count> <n-gram>".
+    private static boolean parseCountLine(String line, ParallelLineReader.Chunk chunk)
+    {
+        String phrase = line.trim();
+        int j = phrase.indexOf(' ');
+        if (j == -1 || j == phrase.length() - 1) {
+            return false;
+        }
+        try {
+            chunk.add(phrase.substring(j + 1), Integer.parseInt(phrase.substring(0, j)));
+            return true;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+    
+    private Set<String> readVocabulary(String file, NGramStoreBuilder store) throws IOException {
+        Set<String> words = new HashSet<>();
         
-        while(in.ready())
-        {
-            String line = in.readLine();
-            vocabulary.add(line);
+        ParallelLineReader.read(file, (line, chunk) -> {
+            chunk.add(line, 0);
+            return true;
+        }, chunk -> {
+            for (int i = 0; i < chunk.size(); i++) {
+                words.add(chunk.getKey(i));
+                store.internWord(chunk.getKey(i));
+            }
+        });
+        return words;
+    }
+    
+    private void reportProblems(String file, ParallelLineReader.Chunk chunk)
+    {
+        Logger logger = Logger.getLogger(CorpusReader.class.getName());
+        for (String problem : chunk.getProblems()) {
+            logger.warning("skipped malformed line in " + file + " at " + problem);
         }
     }
     
@@ -104,11 +292,32 @@ public class CorpusReader
         return h;
     }
     
+    /**
+     * Returns a read-only view of the vocabulary
+     * 
+     * @return 
+     */
+    public Set<String> getVocabulary() 
+    {
+        return Collections.unmodifiableSet(vocabulary);
+    }
+    
     public boolean inVocabulary(String word) 
     {
        return vocabulary.contains(word);
     }    
     
+    /**
+     * Returns whether the counts are looked up on other processes, so that
+     * bigrams are best fetched in batches with getSmoothedCounts
+     * 
+     * @return 
+     */
+    public boolean isRemote()
+    {
+        return ngrams.isRemote();
+    }
+    
     // This smoothening method must be filled to obtain decent spelling correction. 
     // The simplest, but not the best solution, is to use add-one smoothening.
     public double getSmoothedCount(String NGram)
@@ -132,4 +341,63 @@ public class CorpusReader
         
         return smoothedCount;        
     }
+    
+    /**
+     * Same as getSmoothedCount(String) for the bigram <id1> <id2>, without
+     * building the n-gram strings
+     * 
+     * @param id1 : id of the first word, -1 for an unknown word
+     * @param id2 : id of the second word, -1 for an unknown word
+     * @return 
+     */
+    public double getSmoothedCount(int id1, int id2)
+    {
+        return smooth(id1, getNGramCount(id1, id2));
+    }
+    
+    /**
+     * Same as getSmoothedCount(int, int) for a bigram whose count is known
+     * 
+     * @param id1 : id of the first word, -1 for an unknown word
+     * @param bigramCount : count of the bigram
+     * @return 
+     */
+    double smooth(int id1, int bigramCount)
+    {
+        return addOne(bigramCount, getNGramCount(id1), ngrams.size());
+    }
+    
+    /**
+     * The add-one smoothed count of a bigram, for code that has the counts
+     * but no CorpusReader, e.g. a shard server
+     * 
+     * @param bigramCount : count of the bigram
+     * @param firstCount : count of its first word
+     * @param size : number of distinct n-grams of the whole store
+     * @return 
+     */
+    static double addOne(int bigramCount, int firstCount, int size)
+    {
+        return ((double) bigramCount + 1.0) / ((double) firstCount + (double) size);
+    }
+    
+    /**
+     * Same as getSmoothedCount(int, int) for n bigrams at once, with one
+     * batch of count lookups
+     * 
+     * @param ids1 : ids of the first words
+     * @param ids2 : ids of the second words
+     * @param n : number of bigrams
+     * @return the smoothed counts, in the order of the ids
+     */
+    public double[] getSmoothedCounts(int[] ids1, int[] ids2, int n)
+    {
+        int[] counts = new int[n];
+        ngrams.getCounts(ids1, ids2, n, counts);
+        double[] smoothed = new double[n];
+        for (int i = 0; i < n; i++) {
+            smoothed[i] = smooth(ids1[i], counts[i]);
+        }
+        return smoothed;
+    }
 }
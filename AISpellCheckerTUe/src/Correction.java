@@ -0,0 +1,44 @@
+/**
+ * One corrected sentence with the score gain of its corrections over the
+ * original phrase, and whether the search that found it looked at every
+ * candidate or was stopped by its budget.
+ *
+ * @author Tijs
+ */
+public class Correction {
+
+    final private String sentence;
+    final private double score;
+    final private boolean finished;
+
+    public Correction(String sentence, double score) {
+        this(sentence, score, true);
+    }
+
+    public Correction(String sentence, double score, boolean finished) {
+        this.sentence = sentence;
+        this.score = score;
+        this.finished = finished;
+    }
+
+    public String getSentence() {
+        return sentence;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Returns false when the search ran out of time or hypotheses, so the
+     * sentence is the best of the candidates that were scored until then.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public String toString() {
+        return score + "| " + sentence;
+    }
+}
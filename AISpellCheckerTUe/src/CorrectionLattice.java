@@ -0,0 +1,268 @@
+import java.util.Arrays;
+
+/**
+ * Lattice of correction candidates for one phrase.
+ *
+ * Position i holds the original word and its alternatives, each alternative
+ * with the score gain of replacing the original by it. After a correction
+ * the next gap words are kept: with a gap of 1 corrections are not adjacent,
+ * so the bigram neighbours of a correction are always original words. A
+ * gain that also looks at the word two positions before, like the trigram
+ * context of Kneser-Ney smoothing, needs a gap of 2, so that word is never
+ * a correction either. With the gap the gains were scored for, the score of
+ * a corrected sentence is exactly the sum of the gains of its corrections.
+ * The best sentence is then found with a Viterbi pass whose state is the
+ * number of corrections so far and how many words must still be kept,
+ * instead of scoring every sentence separately.
+ *
+ * @author Tijs
+ */
+public class CorrectionLattice {
+
+    /** Marks a position where the original word is kept. */
+    final static int KEEP = -1;
+
+    final private String[] words;
+    final private String[][] candidates;
+    final private double[][] scores;
+    final private boolean[] forced;
+    final private int gap;
+
+    /**
+     * A lattice whose corrections are not adjacent
+     *
+     * @param words the words of the original phrase
+     * @param candidates per position the alternatives for the original word
+     * @param scores per position the score gain of each alternative
+     * @param forced positions that must be corrected (words not in the vocabulary)
+     */
+    public CorrectionLattice(String[] words, String[][] candidates, double[][] scores, boolean[] forced) {
+        this(words, candidates, scores, forced, 1);
+    }
+
+    /**
+     * @param words the words of the original phrase
+     * @param candidates per position the alternatives for the original word
+     * @param scores per position the score gain of each alternative
+     * @param forced positions that must be corrected (words not in the vocabulary)
+     * @param gap the number of words after a correction that are kept, at least 1
+     */
+    public CorrectionLattice(String[] words, String[][] candidates, double[][] scores, boolean[] forced, int gap) {
+        if (gap < 1) {
+            throw new IllegalArgumentException("gap must be at least 1.");
+        }
+        this.words = words;
+        this.candidates = candidates;
+        this.scores = scores;
+        this.forced = forced;
+        this.gap = gap;
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    public String getWord(int i) {
+        return words[i];
+    }
+
+    public String[] getCandidates(int i) {
+        return candidates[i];
+    }
+
+    public double getScore(int i, int candidate) {
+        return scores[i][candidate];
+    }
+
+    public boolean isForced(int i) {
+        return forced[i];
+    }
+
+    public int getGap() {
+        return gap;
+    }
+
+    /**
+     * Returns the number of decode states: per number of corrections so far,
+     * the number of words that must still be kept (0 to gap)
+     *
+     * @param maxCorrections
+     * @return
+     */
+    int countStates(int maxCorrections) {
+        return (maxCorrections + 1) * (gap + 1);
+    }
+
+    // The state after keeping a word in state s.
+    int keepState(int s) {
+        int wait = s % (gap + 1);
+        return (wait == 0) ? s : s - 1;
+    }
+
+    // The state after a correction in state s, or -1 if the word must be kept or no corrections are left.
+    int correctState(int s, int maxCorrections) {
+        int used = s / (gap + 1);
+        if (s % (gap + 1) != 0 || used == maxCorrections) {
+            return -1;
+        }
+        return (used + 1) * (gap + 1) + gap;
+    }
+
+    /**
+     * Finds the highest scoring choice per position with at most
+     * maxCorrections corrections, at least gap words apart.
+     *
+     * @param maxCorrections
+     * @return per position the chosen candidate index or KEEP, null if no
+     * sentence satisfies the constraints
+     */
+    public int[] decode(int maxCorrections) {
+        int n = words.length;
+        int states = countStates(maxCorrections);
+        double[] best = new double[states];
+        double[] next = new double[states];
+        int[][] backState = new int[n][states];
+        int[][] backChoice = new int[n][states];
+
+        Arrays.fill(best, Double.NEGATIVE_INFINITY);
+        best[0] = 0.0;
+
+        for (int i = 0; i < n; i++) {
+            Arrays.fill(next, Double.NEGATIVE_INFINITY);
+            for (int s = 0; s < states; s++) {
+                if (best[s] == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                int kept = keepState(s);
+                if (!forced[i] && best[s] > next[kept]) {
+                    next[kept] = best[s];
+                    backState[i][kept] = s;
+                    backChoice[i][kept] = KEEP;
+                }
+                int target = correctState(s, maxCorrections);
+                if (target < 0) {
+                    continue;
+                }
+                for (int c = 0; c < candidates[i].length; c++) {
+                    double value = best[s] + scores[i][c];
+                    if (value > next[target]) {
+                        next[target] = value;
+                        backState[i][target] = s;
+                        backChoice[i][target] = c;
+                    }
+                }
+            }
+            double[] tmp = best;
+            best = next;
+            next = tmp;
+        }
+
+        int state = -1;
+        for (int s = 0; s < states; s++) {
+            if (best[s] != Double.NEGATIVE_INFINITY && (state == -1 || best[s] > best[state])) {
+                state = s;
+            }
+        }
+        if (state == -1) {
+            return null;
+        }
+
+        int[] choices = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            choices[i] = backChoice[i][state];
+            state = backState[i][state];
+        }
+        return choices;
+    }
+
+    /**
+     * Enumerates the sentences with at most maxCorrections corrections from
+     * the best down, without scoring the ones that are not asked for.
+     *
+     * @param maxCorrections
+     * @return
+     */
+    public KBestIterator kBest(int maxCorrections) {
+        return new KBestIterator(this, maxCorrections);
+    }
+
+    /**
+     * Counts the sentences decode chooses from, which is the number of
+     * sentences that would have to be scored one by one.
+     *
+     * @param maxCorrections
+     * @return the count, at most Long.MAX_VALUE
+     */
+    public long countHypotheses(int maxCorrections) {
+        int states = countStates(maxCorrections);
+        long[] count = new long[states];
+        long[] next = new long[states];
+        count[0] = 1;
+        for (int i = 0; i < words.length; i++) {
+            Arrays.fill(next, 0);
+            for (int s = 0; s < states; s++) {
+                if (count[s] == 0) {
+                    continue;
+                }
+                if (!forced[i]) {
+                    next[keepState(s)] = saturatedAdd(next[keepState(s)], count[s]);
+                }
+                int target = correctState(s, maxCorrections);
+                if (target >= 0) {
+                    long ways = saturatedMultiply(count[s], candidates[i].length);
+                    next[target] = saturatedAdd(next[target], ways);
+                }
+            }
+            long[] tmp = count;
+            count = next;
+            next = tmp;
+        }
+        long total = 0;
+        for (long c : count) {
+            total = saturatedAdd(total, c);
+        }
+        return total;
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long r = a + b;
+        return r < 0 ? Long.MAX_VALUE : r;
+    }
+
+    private static long saturatedMultiply(long a, long b) {
+        return (b != 0 && a > Long.MAX_VALUE / b) ? Long.MAX_VALUE : a * b;
+    }
+
+    /**
+     * Returns the sentence described by the choices of decode.
+     *
+     * @param choices
+     * @return
+     */
+    public String toSentence(int[] choices) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(choices[i] == KEEP ? words[i] : candidates[i][choices[i]]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the total score gain of the choices.
+     *
+     * @param choices
+     * @return
+     */
+    public double score(int[] choices) {
+        double total = 0.0;
+        for (int i = 0; i < choices.length; i++) {
+            if (choices[i] != KEEP) {
+                total += scores[i][choices[i]];
+            }
+        }
+        return total;
+    }
+}
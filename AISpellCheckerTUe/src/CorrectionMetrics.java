@@ -0,0 +1,146 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of the correction pipeline of one SpellCorrector:
+ * the time spent per stage and the size of the work per sentence. Recording
+ * is a few clock reads and lock-free increments per sentence.
+ *
+ * The stages are candidate generation (vocabulary checks and candidate
+ * lookups), scoring (the lattice is built while its candidates are scored)
+ * and selection (decoding the lattice).
+ *
+ * @author Tijs
+ */
+public class CorrectionMetrics implements CorrectionMetricsMBean {
+
+    final Histogram candidatesNanos = new Histogram();
+    final Histogram scoringNanos = new Histogram();
+    final Histogram selectionNanos = new Histogram();
+    final Histogram totalNanos = new Histogram();
+    final Histogram candidatesPerToken = new Histogram();
+    final Histogram hypothesesPerSentence = new Histogram();
+
+    final private LongAdder sentences = new LongAdder();
+    final private LongAdder tokens = new LongAdder();
+    final private LongAdder outOfVocabularyTokens = new LongAdder();
+    final private LongAdder rejectedSentences = new LongAdder();
+    final private LongAdder failedSentences = new LongAdder();
+
+    /**
+     * Records one sentence that went through all stages
+     *
+     * @param lattice the lattice of the sentence
+     * @param maxCorrections the corrections the lattice was decoded with
+     * @param start System.nanoTime at the start of the correction
+     * @param candidatesDone System.nanoTime after candidate generation
+     * @param scoringDone System.nanoTime after scoring
+     * @param end System.nanoTime after selection
+     */
+    void recordSentence(CorrectionLattice lattice, int maxCorrections, long start, long candidatesDone, long scoringDone, long end) {
+        sentences.increment();
+        tokens.add(lattice.size());
+        for (int i = 0; i < lattice.size(); i++) {
+            if (lattice.isForced(i)) {
+                outOfVocabularyTokens.increment();
+            }
+            candidatesPerToken.record(lattice.getCandidates(i).length);
+        }
+        hypothesesPerSentence.record(lattice.countHypotheses(maxCorrections));
+        candidatesNanos.record(candidatesDone - start);
+        scoringNanos.record(scoringDone - candidatesDone);
+        selectionNanos.record(end - scoringDone);
+        totalNanos.record(end - start);
+    }
+
+    void recordRejected() {
+        rejectedSentences.increment();
+    }
+
+    void recordFailed() {
+        failedSentences.increment();
+    }
+
+    Map<String, Histogram> getHistograms() {
+        Map<String, Histogram> histograms = new LinkedHashMap<>();
+        histograms.put("candidatesNanos", candidatesNanos);
+        histograms.put("scoringNanos", scoringNanos);
+        histograms.put("selectionNanos", selectionNanos);
+        histograms.put("totalNanos", totalNanos);
+        histograms.put("candidatesPerToken", candidatesPerToken);
+        histograms.put("hypothesesPerSentence", hypothesesPerSentence);
+        return histograms;
+    }
+
+    /**
+     * Publishes these metrics and every histogram as MBeans under
+     * spellchecker:type=CorrectionMetrics,name=<name>
+     *
+     * @param name
+     * @throws JMException
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName("spellchecker:type=CorrectionMetrics,name=" + name));
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            server.registerMBean(entry.getValue(), new ObjectName(
+                    "spellchecker:type=Histogram,corrector=" + name + ",name=" + entry.getKey()));
+        }
+    }
+
+    @Override
+    public long getSentences() {
+        return sentences.sum();
+    }
+
+    @Override
+    public long getTokens() {
+        return tokens.sum();
+    }
+
+    @Override
+    public long getOutOfVocabularyTokens() {
+        return outOfVocabularyTokens.sum();
+    }
+
+    @Override
+    public long getRejectedSentences() {
+        return rejectedSentences.sum();
+    }
+
+    @Override
+    public long getFailedSentences() {
+        return failedSentences.sum();
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sentences=").append(getSentences())
+                .append(" tokens=").append(getTokens())
+                .append(" oov=").append(getOutOfVocabularyTokens())
+                .append(" rejected=").append(getRejectedSentences())
+                .append(" failed=").append(getFailedSentences()).append('\n');
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        sentences.reset();
+        tokens.reset();
+        outOfVocabularyTokens.reset();
+        rejectedSentences.reset();
+        failedSentences.reset();
+        for (Histogram histogram : getHistograms().values()) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * JMX view of the CorrectionMetrics of a SpellCorrector.
+ *
+ * @author Tijs
+ */
+public interface CorrectionMetricsMBean {
+
+    long getSentences();
+
+    long getTokens();
+
+    long getOutOfVocabularyTokens();
+
+    long getRejectedSentences();
+
+    long getFailedSentences();
+
+    String getSnapshot();
+
+    void reset();
+}
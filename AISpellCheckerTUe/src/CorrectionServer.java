@@ -0,0 +1,245 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local HTTP endpoint around the shared SpellCorrectors of a ModelRegistry,
+ * so each model is loaded once for all clients.
+ *
+ * POST /correct with the phrase as body, or GET /correct?q=phrase, answers
+ * the corrected phrase as text/plain. The phrase is corrected in lower case
+ * with single spaces, see SentenceCache.normalize, and such answers are
+ * cached per model version. With the parameter k=<number>, at most
+ * MAX_K, it answers up to that many corrections, best first, one per line
+ * as the score, a tab and the sentence. With timeout=<milliseconds> any number of
+ * errors is corrected within that time, see SpellCorrector.correctWithin, and
+ * the header X-Search-Finished tells whether the search completed.
+ * With model=<key> the phrase is corrected with that model of the registry
+ * instead of the default one; an unknown key answers 404.
+ * GET /metrics answers a snapshot of
+ * the CorrectionMetrics and the loaded models. POST /reload loads the model
+ * again, see CorrectorHolder, while the requests in flight finish on the old
+ * model. Both take model=<key> too.
+ *
+ * @author Tijs
+ */
+public class CorrectionServer {
+
+    final static int DEFAULT_PORT = 8080;
+    // connections waiting to be accepted
+    final static int BACKLOG = 4096;
+    // number of cached sentences, can be set with -Dspellchecker.sentenceCache=...
+    final static int SENTENCE_CACHE_SIZE = Integer.getInteger("spellchecker.sentenceCache", 10000);
+    // largest k a client may ask for
+    final static int MAX_K = 100;
+
+    final private ModelRegistry registry;
+    final private HttpServer server;
+    final private ExecutorService executor;
+    final private SentenceCache sentenceCache = new SentenceCache(SENTENCE_CACHE_SIZE);
+
+    public CorrectionServer(ModelRegistry registry, int port) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        this.executor = newExecutor();
+        server.createContext("/correct", this::handle);
+        server.createContext("/metrics", this::metrics);
+        server.createContext("/reload", this::reload);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Returns an executor with a virtual thread per request when the JVM has
+     * virtual threads (Java 21+), and a pool of a few threads per core
+     * otherwise. Requests that do not get a thread wait in the pool's queue.
+     */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newFixedThreadPool(4 * Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        try {
+            CorrectionMetrics metrics;
+            try {
+                metrics = registry.getMetrics(model(exchange));
+            } catch (IllegalArgumentException ex) {
+                send(exchange, 404, ex.getMessage());
+                return;
+            }
+            send(exchange, 200, metrics.getSnapshot() + registry.getSummary() + "sentence-cache " + sentenceCache);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Loads the model files again and answers once the new version serves requests.
+    private void reload(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Only POST is supported.");
+                return;
+            }
+            String model = model(exchange);
+            try {
+                send(exchange, 200, "model " + model + " version " + registry.reload(model).get());
+            } catch (IllegalArgumentException ex) {
+                send(exchange, 404, ex.getMessage());
+            } catch (ExecutionException ex) {
+                send(exchange, 500, ex.getCause().getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "interrupted");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String phrase;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                phrase = readBody(exchange.getRequestBody());
+            } else if ("GET".equals(exchange.getRequestMethod())) {
+                phrase = queryParameter(exchange.getRequestURI().getRawQuery(), "q");
+            } else {
+                send(exchange, 405, "Only GET and POST are supported.");
+                return;
+            }
+            if (phrase == null || phrase.trim().isEmpty()) {
+                send(exchange, 400, "No phrase given.");
+                return;
+            }
+            CorrectorHolder.Snapshot snapshot;
+            try {
+                snapshot = registry.acquire(model(exchange));
+            } catch (IllegalArgumentException ex) {
+                send(exchange, 404, ex.getMessage());
+                return;
+            } catch (IllegalStateException ex) {
+                send(exchange, 500, ex.getMessage());
+                return;
+            }
+            // the request finishes on this model version, also when a reload or an eviction replaces it
+            try (snapshot) {
+                answer(exchange, snapshot, SentenceCache.normalize(phrase));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void answer(HttpExchange exchange, CorrectorHolder.Snapshot snapshot, String phrase) throws IOException {
+        SpellCorrector sc = snapshot.getCorrector();
+        String timeout = queryParameter(exchange.getRequestURI().getRawQuery(), "timeout");
+        if (timeout != null) {
+            long millis;
+            try {
+                millis = Long.parseLong(timeout);
+            } catch (NumberFormatException ex) {
+                millis = 0;
+            }
+            if (millis <= 0) {
+                send(exchange, 400, "timeout must be a positive number of milliseconds.");
+                return;
+            }
+            Correction correction = sc.correctWithin(phrase, TimeUnit.MILLISECONDS.toNanos(millis), Long.MAX_VALUE);
+            exchange.getResponseHeaders().set("X-Search-Finished", String.valueOf(correction.isFinished()));
+            send(exchange, 200, correction.getSentence());
+            return;
+        }
+        String k = queryParameter(exchange.getRequestURI().getRawQuery(), "k");
+        if (k == null) {
+            send(exchange, 200, sentenceCache.get(phrase, snapshot.getVersion(), sc::correctPhrase));
+            return;
+        }
+        int count;
+        try {
+            count = Integer.parseInt(k);
+        } catch (NumberFormatException ex) {
+            count = 0;
+        }
+        if (count <= 0 || count > MAX_K) {
+            send(exchange, 400, "k must be a number from 1 to " + MAX_K + ".");
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Correction correction : sc.getCorrections(phrase, count)) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(correction.getScore()).append('\t').append(correction.getSentence());
+        }
+        send(exchange, 200, sb.toString());
+    }
+
+    private static String model(HttpExchange exchange) {
+        String model = queryParameter(exchange.getRequestURI().getRawQuery(), "model");
+        return model == null ? ModelRegistry.DEFAULT_MODEL : model;
+    }
+
+    private static String readBody(InputStream body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = body.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String queryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.Arrays;
+
+/**
+ * Corrects a phrase that is typed word by word, e.g. in an editor. The
+ * session keeps the candidates and their scores per word, so after an edit
+ * only the changed words are looked up again and only the words next to
+ * them are scored again. The result is the same as
+ * SpellCorrector.correctPhrase on the whole phrase, also with
+ * -Dspellchecker.gateMargin: the words the gate leaves out get no
+ * candidates in the lattice, though their scores are kept for when an edit
+ * makes them suspicious.
+ *
+ * A session belongs to one editor and must not be used by several threads
+ * at the same time; the SpellCorrector behind it can be shared.
+ *
+ * @author Tijs
+ */
+public class CorrectionSession {
+
+    final private SpellCorrector sc;
+
+    private String[] words = new String[0];
+    private int[] ids = new int[0];
+    private boolean[] known = new boolean[0];
+    // all candidates per word, whether or not the word is frozen
+    private String[][] candidates = new String[0][];
+    private double[][] scores = new double[0][];
+    // the gap the scores were computed for, see SpellCorrector.getGap
+    private int gap = 1;
+    private String correction = "";
+
+    public CorrectionSession(SpellCorrector sc) {
+        this.sc = sc;
+    }
+
+    /**
+     * Sets the whole phrase, reusing the work for the words that did not
+     * change.
+     *
+     * @param phrase
+     * @return the best correction of the phrase
+     */
+    public String update(String phrase) {
+        if (phrase == null || phrase.length() == 0) {
+            words = new String[0];
+            ids = new int[0];
+            known = new boolean[0];
+            candidates = new String[0][];
+            scores = new double[0][];
+            correction = "";
+            return correction;
+        }
+        return update(phrase.split(" "));
+    }
+
+    /**
+     * Adds a word at the end of the phrase.
+     *
+     * @param word
+     * @return the best correction of the phrase
+     */
+    public String append(String word) {
+        String[] updated = Arrays.copyOf(words, words.length + 1);
+        updated[words.length] = word;
+        return update(updated);
+    }
+
+    /**
+     * Replaces the word at position i.
+     *
+     * @param i
+     * @param word
+     * @return the best correction of the phrase
+     */
+    public String replace(int i, String word) {
+        String[] updated = words.clone();
+        updated[i] = word;
+        return update(updated);
+    }
+
+    public String getCorrection() {
+        return correction;
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    private String update(String[] updated) {
+        int n = updated.length;
+        int oldN = words.length;
+
+        // the words before and after the edit are the same as before
+        int prefix = 0;
+        while (prefix < Math.min(n, oldN) && updated[prefix].equals(words[prefix])) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < Math.min(n, oldN) - prefix
+                && updated[n - 1 - suffix].equals(words[oldN - 1 - suffix])) {
+            suffix++;
+        }
+
+        int[] newIds = new int[n];
+        boolean[] newKnown = new boolean[n];
+        String[][] newCandidates = new String[n][];
+        double[][] newScores = new double[n][];
+        for (int i = 0; i < n; i++) {
+            int old = (i < prefix) ? i : (i >= n - suffix) ? i - n + oldN : -1;
+            if (old >= 0) {
+                newIds[i] = ids[old];
+                newKnown[i] = known[old];
+                newCandidates[i] = candidates[old];
+                newScores[i] = scores[old];
+            } else {
+                newIds[i] = sc.getWordId(updated[i]);
+                newKnown[i] = sc.inVocabulary(updated[i]);
+                newCandidates[i] = sc.getCandidateArray(updated[i]);
+            }
+        }
+
+        // A score depends on the word, its neighbours, the word two back (with Kneser-Ney smoothing)
+        // and whether it is one of the last words, and on the gap of the lattice.
+        int newGap = sc.getGap(SpellCorrector.markErrors(newKnown, new boolean[n]));
+        boolean[] dirty = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            dirty[i] = newScores[i] == null || newGap != gap
+                    || (i >= prefix - 1 && i <= n - suffix + 1)
+                    || (n != oldN && i >= Math.min(n, oldN) - 3);
+        }
+        if (sc.prefetchesBigrams()) {
+            LongIntHashMap batch = new LongIntHashMap();
+            for (int i = 0; i < n; i++) {
+                if (dirty[i]) {
+                    sc.collectBigrams(newIds, i, newCandidates[i], batch);
+                }
+            }
+            sc.fetchBigrams(batch);
+        }
+        for (int i = 0; i < n; i++) {
+            if (dirty[i]) {
+                newScores[i] = new double[newCandidates[i].length];
+                for (int c = 0; c < newCandidates[i].length; c++) {
+                    newScores[i][c] = sc.calculateCorrectionScore(newIds, i, sc.getWordId(newCandidates[i][c]), newGap);
+                }
+            }
+        }
+
+        words = updated;
+        ids = newIds;
+        known = newKnown;
+        candidates = newCandidates;
+        scores = newScores;
+        gap = newGap;
+
+        try {
+            correction = sc.correctLattice(buildLattice());
+        } catch (Exception e) {
+            // the same answer correctPhrase gives when it fails
+            correction = "We could not create any possible resulting sentence :'(";
+        }
+        return correction;
+    }
+
+    // The lattice correctPhrase would build, from the kept candidates and scores.
+    private CorrectionLattice buildLattice() {
+        boolean[] frozen = new boolean[words.length];
+        boolean[] forced = SpellCorrector.markErrors(known, frozen);
+        boolean[] gatedOut = sc.gatedOut(ids, forced);
+        String[][] latticeCandidates = new String[words.length][];
+        double[][] latticeScores = new double[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            boolean searched = !frozen[i] && !gatedOut[i];
+            latticeCandidates[i] = searched ? candidates[i] : SpellCorrector.NO_CANDIDATES;
+            latticeScores[i] = searched ? scores[i] : new double[0];
+        }
+        return new CorrectionLattice(words, latticeCandidates, latticeScores, forced, gap);
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the SpellCorrector of the current model version, and replaces it by
+ * a newly loaded version without stopping the process.
+ *
+ * A request takes the current snapshot with acquire and gives it back with
+ * close. reload loads the vocabulary, counts and confusion matrix again on a
+ * background thread and then swaps the snapshot in one step: new requests
+ * get the new version, requests in flight finish on the old one, and the old
+ * one is released when the last of them closes it. The warm JIT stays, and
+ * all versions share one CorrectionMetrics. Version numbers are unique in the
+ * process, also between holders, so a cache tagged with a version never
+ * confuses two models.
+ *
+ * @author Tijs
+ */
+public class CorrectorHolder {
+
+    /**
+     * Builds the corrector of a new model version.
+     */
+    public interface Loader {
+
+        SpellCorrector load(CorrectionMetrics metrics) throws Exception;
+    }
+
+    /**
+     * One model version. Every acquire must be followed by exactly one close.
+     */
+    public static class Snapshot implements AutoCloseable {
+
+        final private SpellCorrector corrector;
+        final private long version;
+        final private CorrectorHolder holder;
+        // one for the holder while this is the current version, plus one per acquire
+        final private AtomicInteger references = new AtomicInteger(1);
+
+        private Snapshot(SpellCorrector corrector, long version, CorrectorHolder holder) {
+            this.corrector = corrector;
+            this.version = version;
+            this.holder = holder;
+        }
+
+        public SpellCorrector getCorrector() {
+            return corrector;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        // Takes a reference, unless the snapshot was released already.
+        private boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (references.decrementAndGet() == 0) {
+                holder.released(this);
+            }
+        }
+    }
+
+    final private static AtomicLong VERSIONS = new AtomicLong();
+
+    final private Loader loader;
+    final private CorrectionMetrics metrics;
+    final private AtomicReference<Snapshot> current;
+    private volatile boolean closed = false;
+    // replaced snapshots that still have requests in flight
+    final private Set<Snapshot> draining = ConcurrentHashMap.newKeySet();
+    // one reload at a time
+    final private ExecutorService reloader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "model-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Loads the first version
+     *
+     * @param loader
+     * @throws Exception if the first version cannot be loaded
+     */
+    public CorrectorHolder(Loader loader) throws Exception {
+        this(loader, new CorrectionMetrics());
+    }
+
+    /**
+     * Loads the first version, recording into metrics that may outlive this
+     * holder
+     *
+     * @param loader
+     * @param metrics
+     * @throws Exception if the first version cannot be loaded
+     */
+    public CorrectorHolder(Loader loader, CorrectionMetrics metrics) throws Exception {
+        this.loader = loader;
+        this.metrics = metrics;
+        this.current = new AtomicReference<>(new Snapshot(loader.load(metrics), VERSIONS.incrementAndGet(), this));
+    }
+
+    /**
+     * Loads the compiled model if there is one, the text files otherwise.
+     * With -Dspellchecker.shards the counts are read from the shard servers
+     * instead, see ShardedNGramStore, and only the confusion matrix is read
+     * here.
+     *
+     * @param metrics
+     * @return
+     * @throws IOException
+     */
+    static SpellCorrector loadFromFiles(CorrectionMetrics metrics) throws IOException {
+        if (ShardedNGramStore.SHARDS != null) {
+            CorpusReader cr = new CorpusReader(ShardedNGramStore.connect(ShardedNGramStore.SHARDS));
+            return new SpellCorrector(cr, new ConfusionMatrixReader(), metrics);
+        }
+        return loadFromDirectory(new File("."), metrics);
+    }
+
+    /**
+     * Loads the compiled model of a directory if it has one, its text files
+     * otherwise, under the same names as in the working directory
+     *
+     * @param directory
+     * @param metrics
+     * @return
+     * @throws IOException if the directory has neither
+     */
+    static SpellCorrector loadFromDirectory(File directory, CorrectionMetrics metrics) throws IOException {
+        CorpusReader cr;
+        ConfusionMatrixReader cmr;
+        File compiled = new File(directory, MappedModel.MODEL_LOC);
+        if (compiled.exists()) {
+            // compiled with ModelCompiler, no parsing needed
+            MappedModel model = MappedModel.open(compiled.getPath());
+            cr = new CorpusReader(model);
+            cmr = new ConfusionMatrixReader(model);
+        } else {
+            File confusion = new File(directory, ConfusionMatrixReader.DATAFILE_LOC);
+            if (!confusion.exists()) {
+                throw new IOException("no " + MappedModel.MODEL_LOC + " or " + ConfusionMatrixReader.DATAFILE_LOC + " in " + directory);
+            }
+            cr = new CorpusReader(new File(directory, CorpusReader.CNTFILE_LOC).getPath(),
+                    new File(directory, CorpusReader.VOCFILE_LOC).getPath());
+            cmr = new ConfusionMatrixReader(confusion.getPath());
+        }
+        return new SpellCorrector(cr, cmr, metrics);
+    }
+
+    /**
+     * Loads the counts of the compiled model if there is one, of the text
+     * files otherwise
+     *
+     * @return
+     * @throws IOException
+     */
+    static CorpusReader loadCorpus() throws IOException {
+        if (new File(MappedModel.MODEL_LOC).exists()) {
+            return new CorpusReader(MappedModel.open(MappedModel.MODEL_LOC));
+        }
+        return new CorpusReader();
+    }
+
+    /**
+     * Returns the current snapshot, which must be closed after use
+     *
+     * @return
+     */
+    public Snapshot acquire() {
+        Snapshot snapshot = tryAcquire();
+        if (snapshot == null) {
+            throw new IllegalStateException("the holder is closed.");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Same as acquire, but returns null when the holder is closed
+     *
+     * @return
+     */
+    Snapshot tryAcquire() {
+        while (!closed) {
+            Snapshot snapshot = current.get();
+            // fails only if the snapshot was replaced and drained in between
+            if (snapshot.retain()) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gives up the current version: it is released when the requests in
+     * flight have closed it, and acquire fails from now on
+     */
+    public void close() {
+        Snapshot last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = current.get();
+        }
+        reloader.shutdown();
+        last.close();
+    }
+
+    /**
+     * Loads a new version in the background and makes it current. If the
+     * load fails, the current version stays.
+     *
+     * @return the new version number when it is current
+     */
+    public CompletableFuture<Long> reload() {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("the holder is closed."));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            SpellCorrector corrector;
+            try {
+                corrector = loader.load(metrics);
+            } catch (Exception ex) {
+                Logger.getLogger(CorrectorHolder.class.getName()).log(Level.WARNING, "model reload failed", ex);
+                throw new IllegalStateException("model reload failed: " + ex, ex);
+            }
+            Snapshot old;
+            Snapshot next = new Snapshot(corrector, VERSIONS.incrementAndGet(), this);
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("the holder was closed during the reload.");
+                }
+                old = current.get();
+                current.set(next);
+            }
+            draining.add(old);
+            old.close();
+            return next.getVersion();
+        }, reloader);
+    }
+
+    private void released(Snapshot snapshot) {
+        draining.remove(snapshot);
+        // nothing refers to its caches any more, but a stray reference to the corrector should not keep them
+        snapshot.getCorrector().getCandidateCache().clear();
+        snapshot.getCorrector().getSmoothedCountCache().clear();
+        Logger.getLogger(CorrectorHolder.class.getName()).info("released model version " + snapshot.getVersion());
+    }
+
+    public long getVersion() {
+        return current.get().getVersion();
+    }
+
+    /**
+     * Returns the number of replaced versions that still have requests in
+     * flight
+     *
+     * @return
+     */
+    public int getDraining() {
+        return draining.size();
+    }
+
+    public CorrectionMetrics getMetrics() {
+        return metrics;
+    }
+}
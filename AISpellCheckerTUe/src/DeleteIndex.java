@@ -0,0 +1,308 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Symmetric-delete index over the vocabulary (as in SymSpell).
+ *
+ * Every vocabulary word is stored under itself and under each of its single
+ * deletes. Two words within edit distance 1 (insertion, deletion,
+ * substitution or transposition of neighbours) always share one of those
+ * keys, so a lookup only has to generate the deletes of the query word and
+ * verify the few words found under them. Most deletes of a misspelled word
+ * are not a key at all; a Bloom filter over the keys rejects those before
+ * the table is probed.
+ *
+ * A key is stored as its polynomial hash, not as a string. The hash of every
+ * delete follows from the prefix and suffix hashes of the word, so a lookup
+ * walks the word once and creates no strings; the only objects it returns
+ * are the vocabulary words it finds. Two keys with the same hash merely add
+ * words to the verification, which rejects them.
+ *
+ * The index is one buffer, see compile, that ModelCompiler writes into
+ * model.bin, so a compiled model maps it instead of building it. Layout: int
+ * capacity, int postings, int filter longs, int filter hashes, long[capacity]
+ * keys (-1 is empty), long[filter longs] Bloom filter bits, int[capacity]
+ * first posting per key, then per posting the word id and the next posting
+ * of the same key (-1 ends the list).
+ *
+ * @author Tijs
+ */
+public class DeleteIndex {
+
+    final private static long BASE = 0x100000001b3L;
+    // BASE is odd, so it has an inverse modulo 2^64
+    final private static long BASE_INVERSE = inverse(BASE);
+    final private static int NONE = -1;
+    final private static int HEADER_SIZE = 16;
+
+    final private ByteBuffer index;
+    final private int mask;
+    final private int firstsAt;
+    final private int wordsAt;
+    final private int nextsAt;
+    // word id -> word
+    final private IntFunction<String> words;
+    final private boolean[] inAlphabet = new boolean[Character.MAX_VALUE + 1];
+    final private BloomFilter keyFilter;
+
+    /**
+     * Builds the index of a vocabulary
+     *
+     * @param vocabulary
+     * @param alphabet the letters that may be inserted or substituted
+     */
+    public DeleteIndex(Set<String> vocabulary, char[] alphabet) {
+        this(vocabulary.toArray(new String[0]), alphabet);
+    }
+
+    private DeleteIndex(String[] words, char[] alphabet) {
+        this(compile(words), id -> words[id], alphabet);
+    }
+
+    /**
+     * Uses an index written by compile, e.g. mapped from a model file
+     *
+     * @param index
+     * @param words the word of each id the index was compiled with
+     * @param alphabet the letters that may be inserted or substituted
+     */
+    public DeleteIndex(ByteBuffer index, IntFunction<String> words, char[] alphabet) {
+        for (char c : alphabet) {
+            inAlphabet[c] = true;
+        }
+        this.index = index;
+        this.words = words;
+        int capacity = index.getInt(0);
+        int postings = index.getInt(4);
+        int filterLongs = index.getInt(8);
+        mask = capacity - 1;
+        int filterAt = HEADER_SIZE + 8 * capacity;
+        firstsAt = filterAt + 8 * filterLongs;
+        wordsAt = firstsAt + 4 * capacity;
+        nextsAt = wordsAt + 4 * postings;
+        keyFilter = new BloomFilter(index.duplicate().position(filterAt).limit(firstsAt).slice().asLongBuffer(),
+                index.getInt(12));
+    }
+
+    /**
+     * Builds the index of the words in a buffer, see the class comment
+     *
+     * @param words the words by id, null for ids that are not indexed
+     * @return
+     */
+    static ByteBuffer compile(String[] words) {
+        int expected = 0;
+        for (String word : words) {
+            if (word != null) {
+                expected += word.length() + 1;
+            }
+        }
+        // key hash -> first posting of the key, postings as linked lists
+        LongIntHashMap heads = new LongIntHashMap(expected);
+        int[] postingWords = new int[expected];
+        int[] nextPosting = new int[expected];
+        int postings = 0;
+        for (int id = 0; id < words.length; id++) {
+            String word = words[id];
+            if (word == null) {
+                continue;
+            }
+            long hash = hash(word);
+            long[] wordKeys = new long[word.length() + 1];
+            wordKeys[0] = hash;
+            long prefix = 0;
+            long power = power(word.length() - 1);
+            for (int i = 0; i < word.length(); i++) {
+                wordKeys[i + 1] = deleteHash(hash, prefix, word.charAt(i), power);
+                prefix = prefix * BASE + word.charAt(i);
+                power *= BASE_INVERSE;
+            }
+            for (long keyHash : wordKeys) {
+                long key = keyHash & Long.MAX_VALUE;
+                int first = heads.get(key, NONE);
+                // a word like "aab" yields the same delete twice
+                if (first != NONE && postingWords[first] == id) {
+                    continue;
+                }
+                postingWords[postings] = id;
+                nextPosting[postings] = first;
+                heads.put(key, postings);
+                postings++;
+            }
+        }
+
+        long[] keys = heads.keys();
+        BloomFilter filter = new BloomFilter(keys.length, 0.01);
+        for (long key : keys) {
+            filter.add(key);
+        }
+        int capacity = Integer.highestOneBit(Math.max(1, keys.length) * 2) << 1;
+        long[] slots = new long[capacity];
+        int[] firsts = new int[capacity];
+        Arrays.fill(slots, -1L);
+        for (long key : keys) {
+            int slot = LongIntHashMap.hash(key) & (capacity - 1);
+            while (slots[slot] != -1L) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slots[slot] = key;
+            firsts[slot] = heads.get(key, NONE);
+        }
+
+        int filterLongs = filter.getBits().capacity();
+        long size = HEADER_SIZE + 8L * capacity + 8L * filterLongs + 4L * capacity + 8L * postings;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("delete index too large: " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(capacity).putInt(postings).putInt(filterLongs).putInt(filter.getHashes());
+        for (long slot : slots) {
+            buffer.putLong(slot);
+        }
+        buffer.asLongBuffer().put(filter.getBits());
+        buffer.position(buffer.position() + 8 * filterLongs);
+        for (int first : firsts) {
+            buffer.putInt(first);
+        }
+        for (int p = 0; p < postings; p++) {
+            buffer.putInt(postingWords[p]);
+        }
+        for (int p = 0; p < postings; p++) {
+            buffer.putInt(nextPosting[p]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the bytes of the index on the heap, 0 when it is mapped
+     *
+     * @return
+     */
+    public long getHeapSize() {
+        return index.isDirect() ? 0 : index.capacity();
+    }
+
+    // Polynomial hash modulo 2^64; the keys of the map are its low 63 bits.
+    private static long hash(String word) {
+        long hash = 0;
+        for (int i = 0; i < word.length(); i++) {
+            hash = hash * BASE + word.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Hash of the word without the letter at i, from the hash of the word,
+     * the hash of the letters before i and BASE^(length - 1 - i)
+     */
+    private static long deleteHash(long hash, long prefix, char letter, long power) {
+        // hash = (prefix * BASE + letter) * power + suffix
+        long suffix = hash - (prefix * BASE + letter) * power;
+        return prefix * power + suffix;
+    }
+
+    private static long power(int exponent) {
+        long power = 1;
+        for (int i = 0; i < exponent; i++) {
+            power *= BASE;
+        }
+        return power;
+    }
+
+    // Newton's iteration, each step doubles the number of correct low bits.
+    private static long inverse(long odd) {
+        long inverse = odd;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - odd * inverse;
+        }
+        return inverse;
+    }
+
+    /**
+     * Returns all vocabulary words at edit distance exactly 1 from word. The
+     * word itself is never part of the result.
+     *
+     * @param word
+     * @return
+     */
+    public HashSet<String> lookup(String word) {
+        HashSet<String> result = new HashSet<>();
+        long hash = hash(word);
+        probe(hash, word, result);
+        long prefix = 0;
+        long power = power(word.length() - 1);
+        for (int i = 0; i < word.length(); i++) {
+            char letter = word.charAt(i);
+            // deleting either letter of a double letter gives the same key
+            if (i == 0 || letter != word.charAt(i - 1)) {
+                probe(deleteHash(hash, prefix, letter, power), word, result);
+            }
+            prefix = prefix * BASE + letter;
+            power *= BASE_INVERSE;
+        }
+        return result;
+    }
+
+    private void probe(long hash, String word, Set<String> result) {
+        long key = hash & Long.MAX_VALUE;
+        if (!keyFilter.mightContain(key)) {
+            return;
+        }
+        int slot = LongIntHashMap.hash(key) & mask;
+        while (true) {
+            long k = index.getLong(HEADER_SIZE + 8 * slot);
+            if (k == key) {
+                break;
+            }
+            if (k == -1L) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        for (int p = index.getInt(firstsAt + 4 * slot); p != NONE; p = index.getInt(nextsAt + 4 * p)) {
+            String candidate = words.apply(index.getInt(wordsAt + 4 * p));
+            if (isSingleEdit(word, candidate)) {
+                result.add(candidate);
+            }
+        }
+    }
+
+    /**
+     * Checks whether candidate can be made from word with one edit, where
+     * inserted and substituted letters must come from the alphabet.
+     */
+    boolean isSingleEdit(String word, String candidate) {
+        int wlen = word.length();
+        int clen = candidate.length();
+        int prefix = 0;
+        int max = Math.min(wlen, clen);
+        while (prefix < max && word.charAt(prefix) == candidate.charAt(prefix)) {
+            prefix++;
+        }
+
+        if (clen == wlen + 1) {
+            // insertion of candidate[prefix]
+            return inAlphabet[candidate.charAt(prefix)]
+                    && word.regionMatches(prefix, candidate, prefix + 1, wlen - prefix);
+        } else if (clen == wlen - 1) {
+            // deletion of word[prefix]
+            return word.regionMatches(prefix + 1, candidate, prefix, clen - prefix);
+        } else if (clen == wlen && prefix < wlen) {
+            // substitution of word[prefix]
+            if (inAlphabet[candidate.charAt(prefix)]
+                    && word.regionMatches(prefix + 1, candidate, prefix + 1, wlen - prefix - 1)) {
+                return true;
+            }
+            // transposition of word[prefix] and word[prefix+1]
+            return prefix + 1 < wlen
+                    && word.charAt(prefix) == candidate.charAt(prefix + 1)
+                    && word.charAt(prefix + 1) == candidate.charAt(prefix)
+                    && word.regionMatches(prefix + 2, candidate, prefix + 2, wlen - prefix - 2);
+        }
+        return false;
+    }
+}
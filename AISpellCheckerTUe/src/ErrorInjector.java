@@ -0,0 +1,147 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Makes spelling errors the way people make them, according to the
+ * confusion matrix: an entry error|correct with count c means the letters
+ * correct were typed as error c times, so a place in a word where correct
+ * occurs gets that error with a weight of c. That covers substitutions (e|a),
+ * insertions (ae|a), deletions (a|ae) and transpositions (ea|ae) alike.
+ *
+ * @author Tijs
+ */
+public class ErrorInjector {
+
+    /**
+     * The errors of one correct letter or letter pair, with cumulative
+     * counts for sampling
+     */
+    private static class Errors {
+
+        private String[] errors = new String[4];
+        private long[] cumulative = new long[4];
+        private int size = 0;
+
+        void add(String error, int count) {
+            if (size == errors.length) {
+                errors = Arrays.copyOf(errors, size * 2);
+                cumulative = Arrays.copyOf(cumulative, size * 2);
+            }
+            errors[size] = error;
+            cumulative[size] = getTotal() + count;
+            size++;
+        }
+
+        long getTotal() {
+            return size == 0 ? 0 : cumulative[size - 1];
+        }
+
+        // the error at a point between 0 and getTotal()
+        String pick(long point) {
+            int i = Arrays.binarySearch(cumulative, 0, size, point + 1);
+            return errors[i < 0 ? -i - 1 : i];
+        }
+    }
+
+    // correct letter or letter pair -> its errors
+    final private HashMap<String, Errors> errors = new HashMap<>();
+
+    public ErrorInjector(ConfusionMatrixReader cmr) {
+        this(cmr.getConfusionMatrix());
+    }
+
+    ErrorInjector(Map<String, Integer> confusionMatrix) {
+        for (Map.Entry<String, Integer> entry : confusionMatrix.entrySet()) {
+            String keys = entry.getKey();
+            int bar = keys.indexOf('|');
+            String error = keys.substring(0, bar);
+            String correct = keys.substring(bar + 1);
+            // the shapes the channel model knows, of letters that words can contain
+            if (entry.getValue() > 0 && isLetters(error) && isLetters(correct)
+                    && error.length() + correct.length() <= 4 && !error.equals(correct)) {
+                errors.computeIfAbsent(correct, k -> new Errors()).add(error, entry.getValue());
+            }
+        }
+    }
+
+    private static boolean isLetters(String s) {
+        if (s.isEmpty() || s.length() > 2) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < 'a' || c > 'z') && c != '\'') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the word with one error, picked with the weight of the
+     * confusion matrix over all places in the word. A word without any place
+     * the matrix knows is returned as it is.
+     *
+     * @param word
+     * @param random
+     * @return
+     */
+    public String misspell(String word, Random random) {
+        long total = 0;
+        for (int i = 0; i < word.length(); i++) {
+            total += weight(word, i, i + 1) + weight(word, i, i + 2);
+        }
+        if (total == 0) {
+            return word;
+        }
+        long point = (long) (random.nextDouble() * total);
+        for (int i = 0; i < word.length(); i++) {
+            for (int end = i + 1; end <= i + 2 && end <= word.length(); end++) {
+                long weight = weight(word, i, end);
+                if (point < weight) {
+                    String error = errors.get(word.substring(i, end)).pick(point);
+                    return word.substring(0, i) + error + word.substring(end);
+                }
+                point -= weight;
+            }
+        }
+        return word;
+    }
+
+    private long weight(String word, int start, int end) {
+        if (end > word.length()) {
+            return 0;
+        }
+        Errors e = errors.get(word.substring(start, end));
+        return e == null ? 0 : e.getTotal();
+    }
+
+    /**
+     * Misspells each word of a sentence with the given probability, at most
+     * maxErrors words and never two neighbours, as the corrector assumes
+     *
+     * @param sentence space-separated words
+     * @param rate the probability that a word gets an error
+     * @param maxErrors the maximum number of misspelled words
+     * @param random
+     * @return
+     */
+    public String inject(String sentence, double rate, int maxErrors, Random random) {
+        String[] words = sentence.split(" ");
+        int made = 0;
+        for (int i = 0; i < words.length && made < maxErrors; i++) {
+            if (random.nextDouble() < rate) {
+                String misspelled = misspell(words[i], random);
+                if (!misspelled.equals(words[i])) {
+                    words[i] = misspelled;
+                    made++;
+                    // the next word stays correct
+                    i++;
+                }
+            }
+        }
+        return String.join(" ", words);
+    }
+}
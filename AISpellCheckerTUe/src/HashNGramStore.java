@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * N-gram counts on the heap: unigram counts in an int array indexed by word
+ * id, bigram counts in a primitive map keyed by (id1<<32)|id2 and the rare
+ * longer n-grams in a string map.
+ *
+ * @author Tijs
+ */
+public class HashNGramStore implements NGramStore, NGramStoreBuilder {
+
+    // every word of the count file and the vocabulary gets a dense id
+    final private HashMap<String, Integer> wordIds = new HashMap<>();
+    final private List<String> words = new ArrayList<>();
+    private int[] unigrams = new int[1024];
+    final private BitSet seenUnigrams = new BitSet();
+    final private LongIntHashMap bigrams = new LongIntHashMap();
+    // the rare n-grams of more than 2 words
+    final private HashMap<String, Integer> ngrams = new HashMap<>();
+    // number of distinct n-grams
+    private int ngramCount;
+
+    static long bigramKey(int id1, int id2) {
+        return ((long) id1 << 32) | id2;
+    }
+
+    /**
+     * Returns the id of word, giving it the next free id if it has none yet
+     *
+     * @param word
+     * @return
+     */
+    @Override
+    public int internWord(String word) {
+        Integer id = wordIds.get(word);
+        if (id == null) {
+            id = words.size();
+            wordIds.put(word, id);
+            words.add(word);
+            if (id == unigrams.length) {
+                unigrams = Arrays.copyOf(unigrams, unigrams.length * 2);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Sets the count of a space-separated n-gram, replacing an older count
+     *
+     * @param nGram
+     * @param count
+     */
+    @Override
+    public void put(String nGram, int count) {
+        int space = nGram.indexOf(' ');
+        if (space == -1) {
+            int id = internWord(nGram);
+            unigrams[id] = count;
+            if (!seenUnigrams.get(id)) {
+                seenUnigrams.set(id);
+                ngramCount++;
+            }
+        } else if (nGram.indexOf(' ', space + 1) == -1) {
+            int id1 = internWord(nGram.substring(0, space));
+            int id2 = internWord(nGram.substring(space + 1));
+            if (bigrams.put(bigramKey(id1, id2), count)) {
+                ngramCount++;
+            }
+        } else if (ngrams.put(nGram, count) == null) {
+            ngramCount++;
+        }
+    }
+
+    @Override
+    public NGramStore build() {
+        return this;
+    }
+
+    @Override
+    public int getWordId(String word) {
+        Integer id = wordIds.get(word);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public String getWord(int wordId) {
+        return words.get(wordId);
+    }
+
+    @Override
+    public int getWordCount() {
+        return words.size();
+    }
+
+    @Override
+    public int getCount(int wordId) {
+        return wordId < 0 ? 0 : unigrams[wordId];
+    }
+
+    @Override
+    public int getCount(int id1, int id2) {
+        if (id1 < 0 || id2 < 0) {
+            return 0;
+        }
+        return bigrams.get(bigramKey(id1, id2), 0);
+    }
+
+    @Override
+    public int getCount(String nGram) {
+        Integer value = ngrams.get(nGram);
+        return value == null ? 0 : value;
+    }
+
+    @Override
+    public int size() {
+        return ngramCount;
+    }
+
+    @Override
+    public long getHeapSize() {
+        return wordIds.size() * (ENTRY_BYTES + STRING_BYTES + 4) + 4L * unigrams.length
+                + bigrams.getHeapSize() + ngrams.size() * (ENTRY_BYTES + STRING_BYTES);
+    }
+
+    @Override
+    public void forEachNGram(NGramVisitor visitor) {
+        for (long key : bigrams.keys()) {
+            visitor.bigram((int) (key >>> 32), (int) key, bigrams.get(key, 0));
+        }
+        for (Map.Entry<String, Integer> entry : ngrams.entrySet()) {
+            visitor.nGram(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // The methods below give the model compiler access to the raw counts.
+
+    List<String> getWords() {
+        return words;
+    }
+
+    LongIntHashMap getBigrams() {
+        return bigrams;
+    }
+
+    HashMap<String, Integer> getLongerNGrams() {
+        return ngrams;
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values in the style of HdrHistogram: every power
+ * of two is split into 16 linear sub-buckets, so any recorded value is kept
+ * within 1/16 of its size, from nanoseconds to hours, in a fixed array.
+ * Recording takes no locks.
+ *
+ * @author Tijs
+ */
+public class Histogram implements HistogramMBean {
+
+    final private static int SUB_BUCKET_BITS = 4;
+    final private static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    final private static int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    final private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final private LongAdder count = new LongAdder();
+    final private LongAdder sum = new LongAdder();
+    final private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values
+     * lies, e.g. 0.99 for the 99th percentile
+     *
+     * @param fraction
+     * @return
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                // the middle of the bucket, never more than the largest value
+                long low = lowestValue(i);
+                long high = (i + 1 < BUCKETS) ? lowestValue(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(low + (high - low) / 2, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(0.50);
+    }
+
+    @Override
+    public long getP90() {
+        return getPercentile(0.90);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    @Override
+    public long getP999() {
+        return getPercentile(0.999);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p999=%d max=%d",
+                getCount(), getMean(), getP50(), getP90(), getP99(), getP999(), getMax());
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * JMX view of a Histogram.
+ *
+ * @author Tijs
+ */
+public interface HistogramMBean {
+
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getP999();
+}
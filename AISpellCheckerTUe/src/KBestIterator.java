@@ -0,0 +1,189 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Enumerates the sentences of a CorrectionLattice from the highest score
+ * down, one at a time.
+ *
+ * First the best score that can still be reached from every position and
+ * decode state is computed backwards. A best-first search over partial
+ * sentences then uses that score as an exact estimate, so every complete
+ * sentence taken from the heap is the next best one, and asking for k
+ * sentences only expands about k paths through the lattice.
+ *
+ * The heap holds node numbers ordered by a double priority; a node is a
+ * partial sentence stored as a few primitive fields and a link to the node
+ * of its prefix.
+ *
+ * @author Tijs
+ */
+public class KBestIterator implements Iterator<Correction> {
+
+    final private CorrectionLattice lattice;
+    final private int maxCorrections;
+    final private int states;
+    // best score gain from position i on when entering it in state s, indexed i * states + s
+    final private double[] remaining;
+
+    // the nodes: position of the next word, decode state, score so far, prefix node, choice of the last word
+    private int[] position = new int[64];
+    private int[] state = new int[64];
+    private double[] gained = new double[64];
+    private int[] parent = new int[64];
+    private int[] choice = new int[64];
+    private int nodes = 0;
+
+    // binary max-heap of node numbers
+    private int[] heap = new int[64];
+    private double[] priority = new double[64];
+    private int heapSize = 0;
+
+    private Correction next;
+
+    public KBestIterator(CorrectionLattice lattice, int maxCorrections) {
+        this.lattice = lattice;
+        this.maxCorrections = maxCorrections;
+        this.states = lattice.countStates(maxCorrections);
+        this.remaining = computeRemaining();
+        if (remaining[0] != Double.NEGATIVE_INFINITY) {
+            push(addNode(0, 0, 0.0, -1, CorrectionLattice.KEEP));
+        }
+    }
+
+    // The backwards pass of decode: the best completion per position and state.
+    private double[] computeRemaining() {
+        int n = lattice.size();
+        double[] best = new double[(n + 1) * states];
+        Arrays.fill(best, Double.NEGATIVE_INFINITY);
+        Arrays.fill(best, n * states, (n + 1) * states, 0.0);
+        for (int i = n - 1; i >= 0; i--) {
+            for (int s = 0; s < states; s++) {
+                double value = Double.NEGATIVE_INFINITY;
+                if (!lattice.isForced(i)) {
+                    value = best[(i + 1) * states + lattice.keepState(s)];
+                }
+                int target = lattice.correctState(s, maxCorrections);
+                double after = (target >= 0) ? best[(i + 1) * states + target] : Double.NEGATIVE_INFINITY;
+                if (after != Double.NEGATIVE_INFINITY) {
+                    String[] candidates = lattice.getCandidates(i);
+                    for (int c = 0; c < candidates.length; c++) {
+                        value = Math.max(value, lattice.getScore(i, c) + after);
+                    }
+                }
+                best[i * states + s] = value;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public Correction next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Correction result = next;
+        next = null;
+        return result;
+    }
+
+    private Correction advance() {
+        int n = lattice.size();
+        while (heapSize > 0) {
+            int node = pop();
+            int i = position[node];
+            if (i == n) {
+                return toCorrection(node);
+            }
+            if (!lattice.isForced(i)) {
+                expand(node, i, lattice.keepState(state[node]), 0.0, CorrectionLattice.KEEP);
+            }
+            int target = lattice.correctState(state[node], maxCorrections);
+            if (target >= 0) {
+                for (int c = 0; c < lattice.getCandidates(i).length; c++) {
+                    expand(node, i, target, lattice.getScore(i, c), c);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Adds the sentence of node extended with choice c for word i, if it can be completed.
+    private void expand(int node, int i, int s, double gain, int c) {
+        if (remaining[(i + 1) * states + s] != Double.NEGATIVE_INFINITY) {
+            push(addNode(i + 1, s, gained[node] + gain, node, c));
+        }
+    }
+
+    private Correction toCorrection(int node) {
+        int[] choices = new int[lattice.size()];
+        for (int n = node; position[n] > 0; n = parent[n]) {
+            choices[position[n] - 1] = choice[n];
+        }
+        return new Correction(lattice.toSentence(choices).trim(), gained[node]);
+    }
+
+    private int addNode(int i, int s, double g, int prefix, int c) {
+        if (nodes == position.length) {
+            int capacity = nodes * 2;
+            position = Arrays.copyOf(position, capacity);
+            state = Arrays.copyOf(state, capacity);
+            gained = Arrays.copyOf(gained, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            choice = Arrays.copyOf(choice, capacity);
+        }
+        position[nodes] = i;
+        state[nodes] = s;
+        gained[nodes] = g;
+        parent[nodes] = prefix;
+        choice[nodes] = c;
+        return nodes++;
+    }
+
+    private void push(int node) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heapSize * 2);
+            priority = Arrays.copyOf(priority, heapSize * 2);
+        }
+        double p = gained[node] + remaining[position[node] * states + state[node]];
+        int i = heapSize++;
+        while (i > 0 && priority[(i - 1) / 2] < p) {
+            heap[i] = heap[(i - 1) / 2];
+            priority[i] = priority[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = node;
+        priority[i] = p;
+    }
+
+    private int pop() {
+        int top = heap[0];
+        heapSize--;
+        int node = heap[heapSize];
+        double p = priority[heapSize];
+        int i = 0;
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && priority[child + 1] > priority[child]) {
+                child++;
+            }
+            if (priority[child] <= p) {
+                break;
+            }
+            heap[i] = heap[child];
+            priority[i] = priority[child];
+            i = child;
+        }
+        heap[i] = node;
+        priority[i] = p;
+        return top;
+    }
+}
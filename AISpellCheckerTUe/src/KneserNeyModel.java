@@ -0,0 +1,271 @@
+import java.util.Arrays;
+
+/**
+ * Interpolated Kneser-Ney probabilities for unigrams, bigrams and trigrams,
+ * computed once from the counts of an NGramStore.
+ *
+ * At construction the discounts (from the counts of counts), the
+ * continuation counts of the words, the context totals and the back-off
+ * weights are computed, and the probability of every n-gram in the counts
+ * is stored. A lookup then reads the stored probability, or for an unseen
+ * n-gram multiplies the back-off weight of its context with the stored
+ * probability of the shorter n-gram.
+ *
+ * The bigram level uses the raw bigram counts rather than continuation
+ * counts, because the count files hold few trigrams to continue from.
+ * Trigrams are keyed by 21 bits per word id, trigrams with larger ids are
+ * left to the bigram level.
+ *
+ * @author Tijs
+ */
+public class KneserNeyModel {
+
+    final static int TRIGRAM_ID_BITS = 21;
+    final static int MAX_TRIGRAM_ID = (1 << TRIGRAM_ID_BITS) - 1;
+    // used when there are too few n-grams to estimate a discount
+    final static double DEFAULT_DISCOUNT = 0.75;
+
+    // probability of a word id as continuation, and of a word that never continues a bigram
+    final private double[] unigrams;
+    final private double unseenUnigram;
+    // back-off weight per context word id, 1.0 for words that are never a context
+    final private double[] bigramBackoff;
+    final private LongIntHashMap bigramIndex;
+    final private double[] bigrams;
+    // back-off weight per context word pair, through the index
+    final private LongIntHashMap trigramContextIndex;
+    final private double[] trigramBackoff;
+    final private LongIntHashMap trigramIndex;
+    final private double[] trigrams;
+
+    /**
+     * @param store the counts
+     * @param wordCount the number of word ids, over which unseen words are spread
+     */
+    public KneserNeyModel(NGramStore store, int wordCount) {
+        // first pass: the size of the tables, the counts of counts and the trigrams
+        int[] maxId = {-1};
+        int[] countsOfCounts = new int[6];
+        TrigramList trigramList = new TrigramList();
+        store.forEachNGram(new NGramStore.NGramVisitor() {
+            @Override
+            public void bigram(int id1, int id2, int count) {
+                maxId[0] = Math.max(maxId[0], Math.max(id1, id2));
+                if (count == 1 || count == 2) {
+                    countsOfCounts[count - 1]++;
+                }
+            }
+
+            @Override
+            public void nGram(String nGram, int count) {
+                String[] words = nGram.split(" ");
+                if (words.length != 3) {
+                    return;
+                }
+                int u = store.getWordId(words[0]);
+                int v = store.getWordId(words[1]);
+                int w = store.getWordId(words[2]);
+                if (u < 0 || v < 0 || w < 0 || Math.max(u, Math.max(v, w)) > MAX_TRIGRAM_ID) {
+                    return;
+                }
+                trigramList.add(trigramKey(u, v, w), count);
+                if (count == 1 || count == 2) {
+                    countsOfCounts[count + 1]++;
+                }
+            }
+        });
+        int ids = maxId[0] + 1;
+        double bigramDiscount = discount(countsOfCounts[0], countsOfCounts[1]);
+        double trigramDiscount = discount(countsOfCounts[2], countsOfCounts[3]);
+
+        // second pass: context totals, context types and continuation counts
+        long[] contextTotals = new long[ids];
+        int[] contextTypes = new int[ids];
+        int[] continuations = new int[ids];
+        int[] bigramTypes = {0};
+        store.forEachNGram(new NGramStore.NGramVisitor() {
+            @Override
+            public void bigram(int id1, int id2, int count) {
+                contextTotals[id1] += count;
+                contextTypes[id1]++;
+                continuations[id2]++;
+                bigramTypes[0]++;
+            }
+
+            @Override
+            public void nGram(String nGram, int count) {
+            }
+        });
+
+        int continued = 0;
+        for (int c : continuations) {
+            if (c > 0) {
+                continued++;
+            }
+            if (c == 1 || c == 2) {
+                countsOfCounts[c + 3]++;
+            }
+        }
+        double unigramDiscount = discount(countsOfCounts[4], countsOfCounts[5]);
+        double uniform = 1.0 / Math.max(1, Math.max(wordCount, ids));
+        unigrams = new double[ids];
+        if (bigramTypes[0] == 0) {
+            unseenUnigram = uniform;
+            Arrays.fill(unigrams, uniform);
+        } else {
+            unseenUnigram = unigramDiscount * continued / bigramTypes[0] * uniform;
+            for (int w = 0; w < ids; w++) {
+                unigrams[w] = Math.max(continuations[w] - unigramDiscount, 0.0) / bigramTypes[0] + unseenUnigram;
+            }
+        }
+
+        bigramBackoff = new double[ids];
+        for (int v = 0; v < ids; v++) {
+            bigramBackoff[v] = contextTotals[v] > 0 ? bigramDiscount * contextTypes[v] / contextTotals[v] : 1.0;
+        }
+
+        // third pass: the probability of every bigram
+        bigramIndex = new LongIntHashMap(bigramTypes[0]);
+        bigrams = new double[bigramTypes[0]];
+        store.forEachNGram(new NGramStore.NGramVisitor() {
+            @Override
+            public void bigram(int id1, int id2, int count) {
+                int index = bigramIndex.size();
+                bigramIndex.put(HashNGramStore.bigramKey(id1, id2), index);
+                bigrams[index] = contextTotals[id1] == 0 ? getProbability(id2)
+                        : Math.max(count - bigramDiscount, 0.0) / contextTotals[id1]
+                        + bigramBackoff[id1] * getProbability(id2);
+            }
+
+            @Override
+            public void nGram(String nGram, int count) {
+            }
+        });
+
+        // trigrams: the same with word pairs as contexts
+        trigramContextIndex = new LongIntHashMap();
+        long[] trigramContextTotals = new long[trigramList.size];
+        int[] trigramContextTypes = new int[trigramList.size];
+        for (int t = 0; t < trigramList.size; t++) {
+            long context = trigramList.keys[t] >>> TRIGRAM_ID_BITS;
+            int index = trigramContextIndex.get(context, -1);
+            if (index == -1) {
+                index = trigramContextIndex.size();
+                trigramContextIndex.put(context, index);
+            }
+            trigramContextTotals[index] += trigramList.counts[t];
+            trigramContextTypes[index]++;
+        }
+        trigramBackoff = new double[trigramContextIndex.size()];
+        for (int c = 0; c < trigramBackoff.length; c++) {
+            trigramBackoff[c] = trigramContextTotals[c] > 0 ? trigramDiscount * trigramContextTypes[c] / trigramContextTotals[c] : 1.0;
+        }
+        trigramIndex = new LongIntHashMap(trigramList.size);
+        trigrams = new double[trigramList.size];
+        for (int t = 0; t < trigramList.size; t++) {
+            long key = trigramList.keys[t];
+            int context = trigramContextIndex.get(key >>> TRIGRAM_ID_BITS, -1);
+            int v = (int) ((key >>> TRIGRAM_ID_BITS) & MAX_TRIGRAM_ID);
+            int w = (int) (key & MAX_TRIGRAM_ID);
+            trigramIndex.put(key, t);
+            trigrams[t] = trigramContextTotals[context] == 0 ? getProbability(v, w)
+                    : Math.max(trigramList.counts[t] - trigramDiscount, 0.0) / trigramContextTotals[context]
+                    + trigramBackoff[context] * getProbability(v, w);
+        }
+    }
+
+    // D = n1 / (n1 + 2 * n2), from the number of n-grams seen once and twice
+    private static double discount(int once, int twice) {
+        if (once == 0 || twice == 0) {
+            return DEFAULT_DISCOUNT;
+        }
+        return (double) once / (once + 2.0 * twice);
+    }
+
+    static long trigramKey(int u, int v, int w) {
+        return ((long) u << (2 * TRIGRAM_ID_BITS)) | ((long) v << TRIGRAM_ID_BITS) | w;
+    }
+
+    /**
+     * Returns the bytes of the tables
+     *
+     * @return
+     */
+    public long getHeapSize() {
+        return 8L * (unigrams.length + bigramBackoff.length + bigrams.length + trigramBackoff.length + trigrams.length)
+                + bigramIndex.getHeapSize() + trigramContextIndex.getHeapSize() + trigramIndex.getHeapSize();
+    }
+
+    /**
+     * Returns the probability of the word with id w as the continuation of
+     * some word
+     *
+     * @param w : id of the word, -1 for an unknown word
+     * @return
+     */
+    public double getProbability(int w) {
+        return (w >= 0 && w < unigrams.length) ? unigrams[w] : unseenUnigram;
+    }
+
+    /**
+     * Returns the probability of the word with id w after the word with id v
+     *
+     * @param v : id of the previous word, -1 for an unknown word
+     * @param w : id of the word, -1 for an unknown word
+     * @return
+     */
+    public double getProbability(int v, int w) {
+        if (v < 0 || v >= bigramBackoff.length) {
+            return getProbability(w);
+        }
+        if (w >= 0) {
+            int index = bigramIndex.get(HashNGramStore.bigramKey(v, w), -1);
+            if (index >= 0) {
+                return bigrams[index];
+            }
+        }
+        return bigramBackoff[v] * getProbability(w);
+    }
+
+    /**
+     * Returns the probability of the word with id w after the words with ids
+     * u and v
+     *
+     * @param u : id of the word before v, -1 for an unknown word
+     * @param v : id of the previous word, -1 for an unknown word
+     * @param w : id of the word, -1 for an unknown word
+     * @return
+     */
+    public double getProbability(int u, int v, int w) {
+        if (u < 0 || v < 0 || u > MAX_TRIGRAM_ID || v > MAX_TRIGRAM_ID || trigrams.length == 0) {
+            return getProbability(v, w);
+        }
+        if (w >= 0 && w <= MAX_TRIGRAM_ID) {
+            int index = trigramIndex.get(trigramKey(u, v, w), -1);
+            if (index >= 0) {
+                return trigrams[index];
+            }
+        }
+        int context = trigramContextIndex.get(trigramKey(0, u, v), -1);
+        double backoff = context >= 0 ? trigramBackoff[context] : 1.0;
+        return backoff * getProbability(v, w);
+    }
+
+    // Trigram keys and counts collected in the first pass, as growing arrays.
+    private static class TrigramList {
+
+        long[] keys = new long[16];
+        int[] counts = new int[16];
+        int size = 0;
+
+        void add(long key, int count) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            keys[size] = key;
+            counts[size] = count;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives correctPhrase with sentences that get errors as people make them,
+ * see ErrorInjector, at a target rate, and reports throughput, latency and
+ * accuracy of the same run.
+ *
+ * Sentences are sent open-loop: sentence i is due at start + i / rate,
+ * whether or not the corrector kept up, and its latency counts from that
+ * moment. A corrector that falls behind so shows its queueing delay in the
+ * percentiles instead of quietly slowing down the load. The service time
+ * (from the start of correctPhrase) is reported next to it.
+ *
+ * Usage: java LoadHarness [sentences, default 1000000] [rate per second, 0
+ * for as fast as possible, default 0] [threads, default the number of cores]
+ * [error rate per word, default 0.1] [file of clean sentences, default the
+ * corrections in test-sentences.txt]
+ *
+ * @author Tijs
+ */
+public class LoadHarness {
+
+    // sentences that are due but not started, beyond this the generator waits;
+    // without a target rate only one per thread waits, so latency is service time plus handover
+    final static int MAX_WAITING = 10000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long sentences = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+        List<String> clean = args.length > 4 ? readSentences(args[4]) : readCorrections("test-sentences.txt");
+        if (clean.isEmpty()) {
+            throw new IllegalArgumentException("no clean sentences.");
+        }
+
+        CorpusReader cr = new CorpusReader();
+        ConfusionMatrixReader cmr = new ConfusionMatrixReader();
+        SpellCorrector sc = new SpellCorrector(cr, cmr);
+        ErrorInjector injector = new ErrorInjector(cmr);
+
+        Histogram latency = new Histogram();
+        Histogram service = new Histogram();
+        LongAdder withErrors = new LongAdder();
+        LongAdder corrected = new LongAdder();
+        LongAdder kept = new LongAdder();
+        LongAdder changed = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore waiting = new Semaphore(rate > 0 ? MAX_WAITING : threads);
+        Random random = new Random(42);
+        long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+
+        long start = System.nanoTime();
+        for (long i = 0; i < sentences; i++) {
+            String sentence = clean.get(random.nextInt(clean.size()));
+            String noisy = injector.inject(sentence, errorRate, SpellCorrector.MAX_CORRECTIONS, random);
+            long due = (interval > 0) ? start + i * interval : System.nanoTime();
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            waiting.acquire();
+            pool.execute(() -> {
+                waiting.release();
+                long begin = System.nanoTime();
+                String result = sc.correctPhrase(noisy);
+                long end = System.nanoTime();
+                latency.record(end - due);
+                service.record(end - begin);
+                if (!noisy.equals(sentence)) {
+                    withErrors.increment();
+                    if (result.equals(sentence)) {
+                        corrected.increment();
+                    }
+                } else if (result.equals(sentence)) {
+                    kept.increment();
+                } else {
+                    changed.increment();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long errorful = withErrors.sum();
+        long correct = kept.sum() + changed.sum();
+        System.out.println(sentences + " sentences on " + threads + " threads in " + String.format("%.1f", seconds) + " s, "
+                + String.format("%.0f", sentences / seconds) + " sentences/s"
+                + (rate > 0 ? String.format(" (target %.0f)", rate) : ""));
+        System.out.println("latency ns: " + latency);
+        System.out.println("service ns: " + service);
+        System.out.println(String.format("with errors: %d, corrected %d (%.2f%%)",
+                errorful, corrected.sum(), 100.0 * corrected.sum() / Math.max(1, errorful)));
+        System.out.println(String.format("without errors: %d, kept %d (%.2f%%), wrongly changed %d",
+                correct, kept.sum(), 100.0 * kept.sum() / Math.max(1, correct), changed.sum()));
+    }
+
+    private static List<String> readSentences(String file) throws IOException {
+        List<String> sentences = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            String trimmedline = line.trim();
+            if (!trimmedline.isEmpty() && !trimmedline.startsWith("#")) {
+                sentences.add(trimmedline);
+            }
+        }
+        return sentences;
+    }
+
+    // the distinct right-hand sides of "phrase=correction" lines
+    private static List<String> readCorrections(String file) throws IOException {
+        List<String> sentences = new ArrayList<>();
+        for (String line : readSentences(file)) {
+            String[] parts = line.split("=");
+            String correction = parts[parts.length - 1].trim();
+            if (!correction.isEmpty() && !sentences.contains(correction)) {
+                sentences.add(correction);
+            }
+        }
+        return sentences;
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from non-negative long keys to int values,
+ * without boxing. Used for n-gram counts keyed by word ids.
+ *
+ * @author Tijs
+ */
+public class LongIntHashMap {
+
+    final private static long EMPTY = -1L;
+    final private static float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    static int hash(long key) {
+        // finalizer of MurmurHash3, spreads the word ids over all bits
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Returns the value of key, or defaultValue if key is not in the map
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public int get(long key, int defaultValue) {
+        int slot = hash(key) & mask;
+        while (true) {
+            long k = keys[slot];
+            if (k == key) {
+                return values[slot];
+            }
+            if (k == EMPTY) {
+                return defaultValue;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Sets the value of key, replacing an older value
+     *
+     * @param key must be non-negative
+     * @param value
+     * @return true if key was not in the map yet
+     */
+    public boolean put(long key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key must be non-negative.");
+        }
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > keys.length * LOAD_FACTOR) {
+            rehash();
+        }
+        return true;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the bytes of the key and value arrays
+     *
+     * @return
+     */
+    public long getHeapSize() {
+        return 12L * keys.length;
+    }
+
+    /**
+     * Returns all keys of the map, in no particular order
+     *
+     * @return
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        for (long key : keys) {
+            if (key != EMPTY) {
+                result[n++] = key;
+            }
+        }
+        return result;
+    }
+}
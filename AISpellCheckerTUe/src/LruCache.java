@@ -0,0 +1,166 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Size-bounded cache that evicts the least recently used entry. Keys are
+ * spread over segments with a lock each, so threads using different keys
+ * rarely wait for each other. The capacity is split over the segments, so
+ * the cache holds at most capacity entries, and an entry is evicted when its
+ * segment is full, which may be before the whole cache is. Values must not
+ * be modified once cached.
+ *
+ * @author Tijs
+ */
+public class LruCache<K, V> {
+
+    final private static int SEGMENTS = 16;
+
+    final private Segment<K, V>[] segments;
+    final private int capacity;
+    final private LongAdder hits = new LongAdder();
+    final private LongAdder misses = new LongAdder();
+    final private LongAdder evictions = new LongAdder();
+
+    private static class Segment<K, V> extends LinkedHashMap<K, V> {
+
+        final private static long serialVersionUID = 1L;
+
+        final private int capacity;
+        final private LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param capacity maximum number of entries, 0 disables the cache
+     */
+    public LruCache(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must be non-negative.");
+        }
+        this.capacity = capacity;
+        // a small cache gets fewer segments, each holding at least one entry
+        int count = Math.max(1, Math.min(SEGMENTS, capacity));
+        @SuppressWarnings("unchecked")
+        Segment<K, V>[] array = (Segment<K, V>[]) new Segment<?, ?>[count];
+        for (int i = 0; i < count; i++) {
+            array[i] = new Segment<>(capacity / count + (i < capacity % count ? 1 : 0), evictions);
+        }
+        segments = array;
+    }
+
+    private Segment<K, V> segment(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Returns the cached value of key, or null if it is not cached
+     *
+     * @param key
+     * @return
+     */
+    public V get(K key) {
+        if (capacity == 0) {
+            misses.increment();
+            return null;
+        }
+        Segment<K, V> segment = segment(key);
+        V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (capacity == 0) {
+            return;
+        }
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     * Returns the cached value of key, computing and caching it first if
+     * needed. The computation runs outside the lock, so two threads may
+     * compute the same value at the same time.
+     *
+     * @param key
+     * @param compute
+     * @return
+     */
+    public V get(K key, Function<? super K, ? extends V> compute) {
+        V value = get(key);
+        if (value == null) {
+            value = compute.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        long h = getHits();
+        long m = getMisses();
+        return "size=" + size() + "/" + capacity + " hits=" + h + " misses=" + m
+                + " hitrate=" + (h + m == 0 ? 0.0 : (double) h / (h + m)) + " evictions=" + getEvictions();
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Vocabulary, n-gram counts, confusion matrix, delete index and
+ * confidence gate bounds compiled into one binary file by ModelCompiler.
+ * The file is memory-mapped and queried in place, so opening it costs the
+ * same for any corpus size and all processes using the same file share its
+ * pages.
+ *
+ * Layout: int magic, int version, int n-gram count, int vocabulary size,
+ * then offset and length (longs) of the sections words, vocabulary, bigrams,
+ * longer n-grams, confusion matrix, delete index (see DeleteIndex) and gate
+ * bounds (see ConfidenceGate).
+ *
+ * @author Tijs
+ */
+public class MappedModel implements NGramStore {
+
+    final static String MODEL_LOC = "model.bin";
+
+    final static int MAGIC = 0x5350434d; // "SPCM"
+    final static int VERSION = 2;
+
+    final static int WORDS = 0;
+    final static int VOCABULARY = 1;
+    final static int BIGRAMS = 2;
+    final static int NGRAMS = 3;
+    final static int CONFUSION = 4;
+    final static int DELETES = 5;
+    final static int GATE = 6;
+    final static int SECTIONS = 7;
+    final static int HEADER_SIZE = 16 + SECTIONS * 16;
+
+    // words with their unigram count as value, the index is the word id
+    final private MappedStringTable words;
+    // one byte per word id, 1 if the word is in the vocabulary
+    final private ByteBuffer vocabularyFlags;
+    // open-addressing table: int capacity, int size, long[capacity] keys, int[capacity] counts
+    final private ByteBuffer bigrams;
+    final private int bigramMask;
+    final private int bigramValuesAt;
+    final private MappedStringTable ngrams;
+    final private MappedStringTable confusion;
+    final private ByteBuffer deletes;
+    final private ByteBuffer gate;
+    final private int ngramCount;
+    final private int vocabularySize;
+    // bytes mapped for the header and the sections
+    final private long mappedSize;
+
+    private MappedModel(ByteBuffer header, ByteBuffer[] sections) {
+        long mapped = HEADER_SIZE;
+        for (ByteBuffer section : sections) {
+            mapped += section.capacity();
+        }
+        mappedSize = mapped;
+        ngramCount = header.getInt(8);
+        vocabularySize = header.getInt(12);
+        words = new MappedStringTable(sections[WORDS]);
+        vocabularyFlags = sections[VOCABULARY];
+        bigrams = sections[BIGRAMS];
+        int capacity = bigrams.getInt(0);
+        bigramMask = capacity - 1;
+        bigramValuesAt = 8 + 8 * capacity;
+        ngrams = new MappedStringTable(sections[NGRAMS]);
+        confusion = new MappedStringTable(sections[CONFUSION]);
+        deletes = sections[DELETES];
+        gate = sections[GATE];
+    }
+
+    /**
+     * Maps a model file written by ModelCompiler
+     *
+     * @param path
+     * @return
+     * @throws IOException if the file cannot be read or is not a model of
+     * this version
+     */
+    public static MappedModel open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a compiled model");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException(path + " has model version " + header.getInt(4)
+                        + ", expected " + VERSION + ". Run ModelCompiler again.");
+            }
+            // Every section is mapped on its own, so only a section is limited to 2GB.
+            ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+            for (int i = 0; i < SECTIONS; i++) {
+                long offset = header.getLong(16 + 16 * i);
+                long length = header.getLong(16 + 16 * i + 8);
+                sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            // the mappings stay valid after the channel is closed
+            return new MappedModel(header, sections);
+        }
+    }
+
+    @Override
+    public int getWordId(String word) {
+        return words.indexOf(word);
+    }
+
+    @Override
+    public long getOffHeapSize() {
+        return mappedSize;
+    }
+
+    @Override
+    public String getWord(int wordId) {
+        return words.getString(wordId);
+    }
+
+    @Override
+    public int getWordCount() {
+        return words.size();
+    }
+
+    @Override
+    public int getCount(int wordId) {
+        return wordId < 0 ? 0 : words.getValue(wordId);
+    }
+
+    @Override
+    public int getCount(int id1, int id2) {
+        if (id1 < 0 || id2 < 0) {
+            return 0;
+        }
+        long key = HashNGramStore.bigramKey(id1, id2);
+        int slot = LongIntHashMap.hash(key) & bigramMask;
+        while (true) {
+            long k = bigrams.getLong(8 + 8 * slot);
+            if (k == key) {
+                return bigrams.getInt(bigramValuesAt + 4 * slot);
+            }
+            if (k == -1L) {
+                return 0;
+            }
+            slot = (slot + 1) & bigramMask;
+        }
+    }
+
+    @Override
+    public int getCount(String nGram) {
+        int index = ngrams.indexOf(nGram);
+        return index < 0 ? 0 : ngrams.getValue(index);
+    }
+
+    @Override
+    public int size() {
+        return ngramCount;
+    }
+
+    // Everything is in the mapped file, see getOffHeapSize.
+    @Override
+    public long getHeapSize() {
+        return 0;
+    }
+
+    @Override
+    public void forEachNGram(NGramVisitor visitor) {
+        for (int slot = 0; slot <= bigramMask; slot++) {
+            long key = bigrams.getLong(8 + 8 * slot);
+            if (key != -1L) {
+                visitor.bigram((int) (key >>> 32), (int) key, bigrams.getInt(bigramValuesAt + 4 * slot));
+            }
+        }
+        for (int i = 0; i < ngrams.size(); i++) {
+            visitor.nGram(ngrams.getString(i), ngrams.getValue(i));
+        }
+    }
+
+    /**
+     * Returns the delete index of the vocabulary, backed by the file
+     *
+     * @param alphabet the letters that may be inserted or substituted
+     * @return
+     */
+    public DeleteIndex getDeleteIndex(char[] alphabet) {
+        return new DeleteIndex(deletes, this::getWord, alphabet);
+    }
+
+    /**
+     * Returns the bounds of a ConfidenceGate, backed by the file
+     *
+     * @return
+     */
+    ByteBuffer getGateBounds() {
+        return gate.duplicate();
+    }
+
+    private boolean inVocabulary(int wordId) {
+        return wordId >= 0 && vocabularyFlags.get(wordId) != 0;
+    }
+
+    /**
+     * Returns the vocabulary as a read-only set backed by the file
+     *
+     * @return
+     */
+    public Set<String> getVocabulary() {
+        return new AbstractSet<String>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && inVocabulary(words.indexOf((String) o));
+            }
+
+            @Override
+            public int size() {
+                return vocabularySize;
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private int next = advance(0);
+
+                    private int advance(int id) {
+                        while (id < words.size() && !inVocabulary(id)) {
+                            id++;
+                        }
+                        return id;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < words.size();
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        String word = words.getString(next);
+                        next = advance(next + 1);
+                        return word;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the confusion matrix, keyed like "error|correct", as a
+     * read-only map backed by the file
+     *
+     * @return
+     */
+    public Map<String, Integer> getConfusionMatrix() {
+        return new AbstractMap<String, Integer>() {
+            @Override
+            public Integer get(Object key) {
+                if (!(key instanceof String)) {
+                    return null;
+                }
+                int index = confusion.indexOf((String) key);
+                return index < 0 ? null : confusion.getValue(index);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public Set<Map.Entry<String, Integer>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Integer>>() {
+                    @Override
+                    public int size() {
+                        return confusion.size();
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<String, Integer>> iterator() {
+                        return new Iterator<Map.Entry<String, Integer>>() {
+                            private int next = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return next < confusion.size();
+                            }
+
+                            @Override
+                            public Map.Entry<String, Integer> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                int index = next++;
+                                return new AbstractMap.SimpleImmutableEntry<>(
+                                        confusion.getString(index), confusion.getValue(index));
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+}
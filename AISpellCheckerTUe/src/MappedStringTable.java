@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Read-only hash table of strings with an int value each, queried in place
+ * in a (memory-mapped) buffer. The index of a string is its position in the
+ * list the table was built from.
+ *
+ * Layout: int count, int capacity, int[capacity] slots (index + 1, 0 is
+ * empty), int[count + 1] char offsets, int[count] values, char[] strings.
+ *
+ * @author Tijs
+ */
+public class MappedStringTable {
+
+    final private ByteBuffer buffer;
+    final private int count;
+    final private int mask;
+    final private int slotsAt;
+    final private int offsetsAt;
+    final private int valuesAt;
+    final private int charsAt;
+
+    public MappedStringTable(ByteBuffer buffer) {
+        this.buffer = buffer;
+        count = buffer.getInt(0);
+        int capacity = buffer.getInt(4);
+        mask = capacity - 1;
+        slotsAt = 8;
+        offsetsAt = slotsAt + 4 * capacity;
+        valuesAt = offsetsAt + 4 * (count + 1);
+        charsAt = valuesAt + 4 * count;
+    }
+
+    static int hash(String s) {
+        int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the index of s, or -1 if s is not in the table
+     *
+     * @param s
+     * @return
+     */
+    public int indexOf(String s) {
+        int slot = hash(s) & mask;
+        while (true) {
+            int index = buffer.getInt(slotsAt + 4 * slot) - 1;
+            if (index < 0) {
+                return -1;
+            }
+            if (matches(index, s)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean matches(int index, String s) {
+        int from = buffer.getInt(offsetsAt + 4 * index);
+        int to = buffer.getInt(offsetsAt + 4 * (index + 1));
+        if (to - from != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buffer.getChar(charsAt + 2 * (from + i)) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getValue(int index) {
+        return buffer.getInt(valuesAt + 4 * index);
+    }
+
+    public String getString(int index) {
+        int from = buffer.getInt(offsetsAt + 4 * index);
+        int to = buffer.getInt(offsetsAt + 4 * (index + 1));
+        char[] chars = new char[to - from];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = buffer.getChar(charsAt + 2 * (from + i));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Lays out a table in a new buffer, ready to be written to a model file
+     *
+     * @param strings distinct strings, their position is their index
+     * @param values the value of each string
+     * @return
+     */
+    static ByteBuffer build(List<String> strings, int[] values) {
+        int count = strings.size();
+        int capacity = Integer.highestOneBit(Math.max(1, count) * 2) << 1;
+        long chars = 0;
+        for (String s : strings) {
+            chars += s.length();
+        }
+        long size = 8 + 4L * capacity + 4L * (count + 1) + 4L * count + 2 * chars;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("string table too large: " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(count).putInt(capacity);
+
+        int[] slots = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            int slot = hash(strings.get(i)) & (capacity - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slots[slot] = i + 1;
+        }
+        for (int slot : slots) {
+            buffer.putInt(slot);
+        }
+        int offset = 0;
+        for (String s : strings) {
+            buffer.putInt(offset);
+            offset += s.length();
+        }
+        buffer.putInt(offset);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(values[i]);
+        }
+        for (String s : strings) {
+            for (int i = 0; i < s.length(); i++) {
+                buffer.putChar(s.charAt(i));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
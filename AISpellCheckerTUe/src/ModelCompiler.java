@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles samplecnt.txt, samplevoc.txt and confusion_matrix.txt into one
+ * binary model file that MappedModel maps at startup, together with what
+ * would otherwise be built from them at every start: the delete index of the
+ * vocabulary and the bounds of the confidence gate.
+ *
+ * Usage: java ModelCompiler [output file, default model.bin]
+ *
+ * @author Tijs
+ */
+public class ModelCompiler {
+
+    public static void main(String[] args) throws IOException {
+        String output = args.length > 0 ? args[0] : MappedModel.MODEL_LOC;
+
+        CorpusReader cr = new CorpusReader();
+        ConfusionMatrixReader cmr = new ConfusionMatrixReader();
+        compile(cr, cmr, output);
+        System.out.println("Wrote " + output);
+    }
+
+    /**
+     * Writes the counts and vocabulary of a text-loaded CorpusReader and
+     * the confusion matrix to a model file. The model is written to a
+     * temporary file next to output, which then replaces output in one
+     * rename: processes that have the old file mapped keep reading the old
+     * file, and never see a half-written one.
+     *
+     * @param cr
+     * @param cmr
+     * @param output
+     * @throws IOException
+     */
+    static void compile(CorpusReader cr, ConfusionMatrixReader cmr, String output) throws IOException {
+        if (!(cr.getNGramStore() instanceof HashNGramStore)) {
+            throw new IllegalArgumentException("only a CorpusReader loaded from text can be compiled.");
+        }
+        HashNGramStore store = (HashNGramStore) cr.getNGramStore();
+
+        ByteBuffer[] sections = new ByteBuffer[MappedModel.SECTIONS];
+        sections[MappedModel.WORDS] = buildWords(store);
+        sections[MappedModel.VOCABULARY] = buildVocabulary(store, cr.getVocabulary());
+        sections[MappedModel.BIGRAMS] = buildBigrams(store.getBigrams());
+        sections[MappedModel.NGRAMS] = buildTable(store.getLongerNGrams());
+        sections[MappedModel.CONFUSION] = buildTable(cmr.getConfusionMatrix());
+        sections[MappedModel.DELETES] = buildDeletes(store, cr.getVocabulary());
+        sections[MappedModel.GATE] = ConfidenceGate.computeBounds(cr);
+
+        ByteBuffer header = ByteBuffer.allocate(MappedModel.HEADER_SIZE);
+        header.putInt(MappedModel.MAGIC)
+                .putInt(MappedModel.VERSION)
+                .putInt(store.size())
+                .putInt(cr.getVocabularySize());
+        long offset = MappedModel.HEADER_SIZE;
+        for (ByteBuffer section : sections) {
+            // keep every section 8-byte aligned for the long reads
+            offset = (offset + 7) & ~7L;
+            header.putLong(offset).putLong(section.remaining());
+            offset += section.remaining();
+        }
+        header.flip();
+
+        Path target = Paths.get(output).toAbsolutePath();
+        Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                write(channel, header, 0);
+                for (int i = 0; i < sections.length; i++) {
+                    write(channel, sections[i], header.getLong(16 + 16 * i));
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static ByteBuffer buildWords(HashNGramStore store) {
+        List<String> words = store.getWords();
+        int[] counts = new int[words.size()];
+        for (int id = 0; id < counts.length; id++) {
+            counts[id] = store.getCount(id);
+        }
+        return MappedStringTable.build(words, counts);
+    }
+
+    private static ByteBuffer buildVocabulary(HashNGramStore store, Set<String> vocabulary) {
+        byte[] flags = new byte[store.getWords().size()];
+        for (String word : vocabulary) {
+            flags[store.getWordId(word)] = 1;
+        }
+        return ByteBuffer.wrap(flags);
+    }
+
+    // The vocabulary words at their ids, so the index returns the words of the model.
+    private static ByteBuffer buildDeletes(HashNGramStore store, Set<String> vocabulary) {
+        String[] words = new String[store.getWords().size()];
+        for (String word : vocabulary) {
+            words[store.getWordId(word)] = word;
+        }
+        return DeleteIndex.compile(words);
+    }
+
+    private static ByteBuffer buildBigrams(LongIntHashMap bigrams) {
+        long[] keys = bigrams.keys();
+        int capacity = Integer.highestOneBit(Math.max(1, keys.length) * 2) << 1;
+        long[] slots = new long[capacity];
+        int[] counts = new int[capacity];
+        Arrays.fill(slots, -1L);
+        for (long key : keys) {
+            int slot = LongIntHashMap.hash(key) & (capacity - 1);
+            while (slots[slot] != -1L) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slots[slot] = key;
+            counts[slot] = bigrams.get(key, 0);
+        }
+
+        long size = 8 + 12L * capacity;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bigram table too large: " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(capacity).putInt(keys.length);
+        for (long slot : slots) {
+            buffer.putLong(slot);
+        }
+        for (int count : counts) {
+            buffer.putInt(count);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer buildTable(Map<String, Integer> map) {
+        List<String> keys = new ArrayList<>(map.keySet());
+        int[] values = new int[keys.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = map.get(keys.get(i));
+        }
+        return MappedStringTable.build(keys, values);
+    }
+}
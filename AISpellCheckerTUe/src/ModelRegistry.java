@@ -0,0 +1,284 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+
+/**
+ * The models a server corrects with, by key, each in its own
+ * CorrectorHolder. The default model is the one of the working directory
+ * (or of the shard servers, see CorrectorHolder.loadFromFiles). With
+ * -Dspellchecker.models=dir every subdirectory of dir is a model too, e.g. a
+ * language or domain, with the files of the working directory or a
+ * model.bin.
+ *
+ * A model is loaded on its first request into its own future; requests for
+ * it that arrive during the load wait for that future, requests for other
+ * models do not wait at all. After each load and reload the least recently
+ * used models are evicted until the footprint of all loaded models is within
+ * -Dspellchecker.modelBudget megabytes. An evicted model is closed like a
+ * replaced version: its requests in flight finish, and the next request
+ * loads it again. The default model counts toward the budget but is never
+ * evicted. The metrics of a key outlive its evictions.
+ *
+ * The footprint of a model is estimated from the sizes of its counts,
+ * vocabulary and indexes plus its memory-mapped files, see
+ * SpellCorrector.estimateFootprint, and estimated again when a reload swaps
+ * in a new version. The caches a model fills while it serves are not
+ * counted.
+ *
+ * @author Tijs
+ */
+public class ModelRegistry {
+
+    final static String DEFAULT_MODEL = "default";
+    // directory with a subdirectory per model, can be set with -Dspellchecker.models=...
+    final static String MODELS = System.getProperty("spellchecker.models");
+    // megabytes, can be set with -Dspellchecker.modelBudget=...
+    final static long BUDGET = Long.getLong("spellchecker.modelBudget", 1024);
+
+    final private static Pattern KEY = Pattern.compile("[A-Za-z0-9_-]+");
+    final private static Logger LOGGER = Logger.getLogger(ModelRegistry.class.getName());
+
+    /**
+     * A model that is loaded or being loaded
+     */
+    private static class Model {
+
+        final private CompletableFuture<CorrectorHolder> holder = new CompletableFuture<>();
+        // bytes, set when the load or a reload is done
+        private volatile long footprint;
+    }
+
+    final private File root;
+    final private long budget;
+    // least recently used first, guarded by this
+    final private LinkedHashMap<String, Model> models = new LinkedHashMap<>(16, 0.75f, true);
+    final private ConcurrentHashMap<String, CorrectionMetrics> metrics = new ConcurrentHashMap<>();
+
+    public ModelRegistry() {
+        this(MODELS == null ? null : new File(MODELS), BUDGET * 1024 * 1024);
+    }
+
+    /**
+     * @param root directory with a subdirectory per model, or null for only
+     * the default model
+     * @param budget bytes the loaded models may take together
+     */
+    public ModelRegistry(File root, long budget) {
+        this.root = root;
+        this.budget = budget;
+    }
+
+    // Throws IllegalArgumentException for keys without a model.
+    private CorrectorHolder.Loader loaderOf(String key) {
+        if (DEFAULT_MODEL.equals(key)) {
+            return CorrectorHolder::loadFromFiles;
+        }
+        if (root == null || !KEY.matcher(key).matches() || !new File(root, key).isDirectory()) {
+            throw new IllegalArgumentException("unknown model " + key + ".");
+        }
+        File directory = new File(root, key);
+        return metrics -> CorrectorHolder.loadFromDirectory(directory, metrics);
+    }
+
+    /**
+     * Returns a snapshot of the current version of a model, which must be
+     * closed after use, and loads the model first if needed
+     *
+     * @param key
+     * @return
+     * @throws IllegalArgumentException if there is no model with that key
+     * @throws IllegalStateException if the model cannot be loaded
+     */
+    public CorrectorHolder.Snapshot acquire(String key) {
+        CorrectorHolder.Loader loader = loaderOf(key);
+        while (true) {
+            CorrectorHolder.Snapshot snapshot = model(key, loader).holder.join().tryAcquire();
+            if (snapshot != null) {
+                return snapshot;
+            }
+            // evicted between the lookup and the acquire
+        }
+    }
+
+    // Returns the loaded model of key, loading it on this thread if no other thread does.
+    private Model model(String key, CorrectorHolder.Loader loader) {
+        Model model;
+        boolean mine = false;
+        synchronized (this) {
+            model = models.get(key);
+            if (model == null) {
+                model = new Model();
+                models.put(key, model);
+                mine = true;
+            }
+        }
+        if (mine) {
+            load(key, model, loader);
+        }
+        try {
+            model.holder.join();
+            return model;
+        } catch (CompletionException ex) {
+            throw new IllegalStateException("model " + key + " cannot be loaded: " + ex.getCause(), ex.getCause());
+        }
+    }
+
+    private void load(String key, Model model, CorrectorHolder.Loader loader) {
+        try {
+            CorrectorHolder holder = new CorrectorHolder(loader, getMetrics(key));
+            try (CorrectorHolder.Snapshot snapshot = holder.acquire()) {
+                model.footprint = snapshot.getCorrector().estimateFootprint();
+            }
+            model.holder.complete(holder);
+            LOGGER.info("loaded model " + key + ", about " + (model.footprint >> 20) + " MB");
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "loading model " + key + " failed", ex);
+            synchronized (this) {
+                models.remove(key, model);
+            }
+            model.holder.completeExceptionally(ex);
+            return;
+        }
+        evict(key);
+    }
+
+    // Closes the least recently used loaded models, except keep and the default model, until the rest fits the budget.
+    private void evict(String keep) {
+        List<String> keys = new ArrayList<>();
+        List<CorrectorHolder> holders = new ArrayList<>();
+        synchronized (this) {
+            long total = 0;
+            for (Model model : models.values()) {
+                if (isLoaded(model)) {
+                    total += model.footprint;
+                }
+            }
+            Iterator<Map.Entry<String, Model>> it = models.entrySet().iterator();
+            while (total > budget && it.hasNext()) {
+                Map.Entry<String, Model> entry = it.next();
+                Model model = entry.getValue();
+                if (!entry.getKey().equals(keep) && !entry.getKey().equals(DEFAULT_MODEL) && isLoaded(model)) {
+                    it.remove();
+                    total -= model.footprint;
+                    keys.add(entry.getKey());
+                    holders.add(model.holder.join());
+                }
+            }
+        }
+        for (int i = 0; i < holders.size(); i++) {
+            holders.get(i).close();
+            LOGGER.info("evicted model " + keys.get(i));
+        }
+    }
+
+    private static boolean isLoaded(Model model) {
+        return model.holder.isDone() && !model.holder.isCompletedExceptionally();
+    }
+
+    /**
+     * Loads a model again, see CorrectorHolder.reload, and estimates its
+     * footprint again once the new version is current. A model that is not
+     * loaded is loaded now.
+     *
+     * @param key
+     * @return the version that serves the model when it is current
+     * @throws IllegalArgumentException if there is no model with that key
+     */
+    public CompletableFuture<Long> reload(String key) {
+        CorrectorHolder.Loader loader = loaderOf(key);
+        boolean loaded;
+        synchronized (this) {
+            loaded = models.containsKey(key);
+        }
+        Model model;
+        try {
+            model = model(key, loader);
+        } catch (IllegalStateException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        CorrectorHolder holder = model.holder.join();
+        if (!loaded) {
+            return CompletableFuture.completedFuture(holder.getVersion());
+        }
+        return holder.reload().thenApply(version -> {
+            // null if the model was evicted during the reload
+            CorrectorHolder.Snapshot snapshot = holder.tryAcquire();
+            if (snapshot != null) {
+                try (snapshot) {
+                    model.footprint = snapshot.getCorrector().estimateFootprint();
+                }
+                evict(key);
+            }
+            return version;
+        });
+    }
+
+    /**
+     * Returns the metrics of a model, which are kept when it is evicted and
+     * registered as an MBean under its key
+     *
+     * @param key
+     * @return
+     * @throws IllegalArgumentException if there is no model with that key
+     */
+    public CorrectionMetrics getMetrics(String key) {
+        loaderOf(key);
+        return metrics.computeIfAbsent(key, k -> {
+            CorrectionMetrics m = new CorrectionMetrics();
+            try {
+                m.register(k);
+            } catch (JMException ex) {
+                LOGGER.log(Level.WARNING, "cannot register the metrics of model " + k, ex);
+            }
+            return m;
+        });
+    }
+
+    /**
+     * Returns the loaded models, least recently used first, with their
+     * version and footprint
+     *
+     * @return
+     */
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        long total = 0;
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            Model model = entry.getValue();
+            if (isLoaded(model)) {
+                total += model.footprint;
+                sb.append("model ").append(entry.getKey())
+                        .append(" version=").append(model.holder.join().getVersion())
+                        .append(" mb=").append(model.footprint >> 20).append('\n');
+            }
+        }
+        sb.append("models mb=").append(total >> 20).append(" budget=").append(budget >> 20).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Closes all loaded models
+     */
+    public void close() {
+        List<Model> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(models.values());
+            models.clear();
+        }
+        for (Model model : closing) {
+            if (isLoaded(model)) {
+                model.holder.join().close();
+            }
+        }
+    }
+}
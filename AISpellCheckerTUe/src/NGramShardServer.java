@@ -0,0 +1,294 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One node of a ShardedNGramStore. It holds all words with their unigram
+ * counts, but only the bigrams and longer n-grams whose key hashes to its
+ * shard, see ShardedNGramStore.shardOf, and answers batches of lookups over
+ * HTTP in a binary format (DataOutputStream, big-endian):
+ *
+ * GET /info answers the shard, the number of shards, the number of words
+ * and the size of the whole store, so that a client can check it has the
+ * shards in the right order and of one model. GET /words answers the number
+ * of words and the size of the whole store, then per word in id order the
+ * word, its count and whether it is in the vocabulary. POST /bigrams takes a
+ * number n and n bigram keys (longs, see HashNGramStore.bigramKey) and
+ * answers n counts. POST /ngrams takes a number n and n n-grams and answers
+ * n counts. Both answer 400 when n is above MAX_BATCH or does not match the
+ * rest of the request. GET /gate answers per word in id
+ * order the highest add-one smoothed count of the bigrams of the shard that
+ * start and that end with the word (doubles, 0 if there is none), so that a
+ * ConfidenceGate needs no bigram of the shard. GET /dump streams the n-grams
+ * of the shard for forEachNGram: 0 and id1, id2, count per bigram, 1 and the
+ * n-gram and count per longer n-gram, and 2 at the end.
+ *
+ * Usage: java NGramShardServer shard shards [port, default 9090 + shard]
+ *
+ * The counts are read like the spell checker reads them (model.bin or the
+ * text files) and everything outside the shard is dropped after that, so
+ * several shards can run on one machine in place of nodes.
+ *
+ * @author Tijs
+ */
+public class NGramShardServer {
+
+    final static int DEFAULT_PORT = 9090;
+    // most lookups in one request
+    final static int MAX_BATCH = 1 << 20;
+    // largest request body, a full batch of bigram keys
+    final static int MAX_BODY = 4 + 8 * MAX_BATCH;
+
+    final static byte BIGRAM = 0;
+    final static byte NGRAM = 1;
+    final static byte END = 2;
+
+    final private int shard;
+    final private int shards;
+    final private String[] words;
+    final private int[] unigrams;
+    final private BitSet vocabulary = new BitSet();
+    // the bigrams and longer n-grams of this shard
+    final private LongIntHashMap bigrams = new LongIntHashMap();
+    final private HashMap<String, Integer> ngrams = new HashMap<>();
+    // per word id: highest smoothed count of a bigram of this shard starting and ending with the word
+    final private double[] maxAfter;
+    final private double[] maxBefore;
+    // the size of the whole store, not of the shard
+    final private int size;
+    final private HttpServer server;
+    final private ExecutorService executor;
+
+    public NGramShardServer(NGramStore store, Set<String> vocabulary, int shard, int shards, int port) throws IOException {
+        if (shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("shard must be between 0 and " + (shards - 1) + ".");
+        }
+        this.shard = shard;
+        this.shards = shards;
+        words = new String[store.getWordCount()];
+        unigrams = new int[words.length];
+        for (int id = 0; id < words.length; id++) {
+            words[id] = store.getWord(id);
+            unigrams[id] = store.getCount(id);
+            if (vocabulary.contains(words[id])) {
+                this.vocabulary.set(id);
+            }
+        }
+        size = store.size();
+        maxAfter = new double[words.length];
+        maxBefore = new double[words.length];
+        store.forEachNGram(new NGramStore.NGramVisitor() {
+            @Override
+            public void bigram(int id1, int id2, int count) {
+                long key = HashNGramStore.bigramKey(id1, id2);
+                if (ShardedNGramStore.shardOf(key, shards) == shard) {
+                    bigrams.put(key, count);
+                    double smoothed = CorpusReader.addOne(count, unigrams[id1], size);
+                    maxAfter[id1] = Math.max(maxAfter[id1], smoothed);
+                    maxBefore[id2] = Math.max(maxBefore[id2], smoothed);
+                }
+            }
+
+            @Override
+            public void nGram(String nGram, int count) {
+                if (ShardedNGramStore.shardOf(nGram, shards) == shard) {
+                    ngrams.put(nGram, count);
+                }
+            }
+        });
+
+        server = HttpServer.create(new InetSocketAddress(port), CorrectionServer.BACKLOG);
+        executor = CorrectionServer.newExecutor();
+        server.createContext("/info", this::info);
+        server.createContext("/words", this::words);
+        server.createContext("/bigrams", this::bigrams);
+        server.createContext("/ngrams", this::ngrams);
+        server.createContext("/gate", this::gate);
+        server.createContext("/dump", this::dump);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void info(HttpExchange exchange) throws IOException {
+        try {
+            ByteBuffer answer = ByteBuffer.allocate(16);
+            answer.putInt(shard);
+            answer.putInt(shards);
+            answer.putInt(words.length);
+            answer.putInt(size);
+            send(exchange, answer.array());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void words(HttpExchange exchange) throws IOException {
+        try (DataOutputStream out = open(exchange)) {
+            out.writeInt(words.length);
+            out.writeInt(size);
+            for (int id = 0; id < words.length; id++) {
+                out.writeUTF(words[id]);
+                out.writeInt(unigrams[id]);
+                out.writeBoolean(vocabulary.get(id));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void bigrams(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+            ByteBuffer request = ByteBuffer.wrap(body);
+            int n = body.length >= 4 ? request.getInt() : -1;
+            // n keys of 8 bytes each, nothing more
+            if (n < 0 || n > MAX_BATCH || body.length != 4 + 8L * n) {
+                reject(exchange, "expected a count from 0 to " + MAX_BATCH + " and that many bigram keys.");
+                return;
+            }
+            ByteBuffer answer = ByteBuffer.allocate(4 * n);
+            for (int i = 0; i < n; i++) {
+                answer.putInt(bigrams.get(request.getLong(), 0));
+            }
+            send(exchange, answer.array());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void ngrams(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            int n = body.length >= 4 ? in.readInt() : -1;
+            // every n-gram takes at least its 2 length bytes
+            if (n < 0 || n > MAX_BATCH || body.length > MAX_BODY || 4 + 2L * n > body.length) {
+                reject(exchange, "expected a count from 0 to " + MAX_BATCH + " and that many n-grams.");
+                return;
+            }
+            ByteBuffer answer = ByteBuffer.allocate(4 * n);
+            try {
+                for (int i = 0; i < n; i++) {
+                    answer.putInt(ngrams.getOrDefault(in.readUTF(), 0));
+                }
+            } catch (EOFException | UTFDataFormatException ex) {
+                reject(exchange, "the request does not hold " + n + " n-grams.");
+                return;
+            }
+            if (in.available() > 0) {
+                reject(exchange, "the request holds more than " + n + " n-grams.");
+                return;
+            }
+            send(exchange, answer.array());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void gate(HttpExchange exchange) throws IOException {
+        try {
+            ByteBuffer answer = ByteBuffer.allocate(16 * words.length);
+            for (int id = 0; id < words.length; id++) {
+                answer.putDouble(maxAfter[id]);
+                answer.putDouble(maxBefore[id]);
+            }
+            send(exchange, answer.array());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void dump(HttpExchange exchange) throws IOException {
+        try (DataOutputStream out = open(exchange)) {
+            for (long key : bigrams.keys()) {
+                out.writeByte(BIGRAM);
+                out.writeInt((int) (key >>> 32));
+                out.writeInt((int) key);
+                out.writeInt(bigrams.get(key, 0));
+            }
+            for (Map.Entry<String, Integer> entry : ngrams.entrySet()) {
+                out.writeByte(NGRAM);
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.writeByte(END);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Answers with a known length; a small chunked answer waits for the delayed ack of the client.
+    private static void send(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void reject(HttpExchange exchange, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(400, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Starts a chunked 200 answer, for the large answers that are streamed.
+    private static DataOutputStream open(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, 0);
+        return new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java NGramShardServer shard shards [port]");
+            System.exit(2);
+        }
+        int shard = Integer.parseInt(args[0]);
+        int shards = Integer.parseInt(args[1]);
+        int port = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_PORT + shard;
+
+        // answers are small and should not wait for the next packet, must be set before the server starts
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        CorpusReader cr = CorrectorHolder.loadCorpus();
+        NGramShardServer server = new NGramShardServer(cr.getNGramStore(), cr.getVocabulary(), shard, shards, port);
+        server.start();
+        System.out.println("Serving shard " + shard + " of " + shards + " on port " + server.getPort());
+    }
+}
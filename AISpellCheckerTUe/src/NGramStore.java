@@ -0,0 +1,119 @@
+/**
+ * Read-only n-gram counts, addressed by dense word ids.
+ *
+ * @author Tijs
+ */
+public interface NGramStore {
+
+    // estimated heap bytes of a word or n-gram string, and of a hash map or set entry with its slot and boxed value
+    long STRING_BYTES = 56;
+    long ENTRY_BYTES = 48;
+
+    /**
+     * Returns the id of a word in the counts or the vocabulary
+     *
+     * @param word
+     * @return the id, or -1 if the word is unknown
+     */
+    int getWordId(String word);
+
+    /**
+     * Returns the word with the given id
+     */
+    String getWord(int wordId);
+
+    /**
+     * Returns the number of word ids, the ids are 0 up to this number
+     */
+    int getWordCount();
+
+    /**
+     * Returns the count of a single word, 0 for id -1
+     */
+    int getCount(int wordId);
+
+    /**
+     * Returns the count of the bigram id1 id2, 0 if either id is -1
+     */
+    int getCount(int id1, int id2);
+
+    /**
+     * Looks up the counts of n bigrams at once: counts[i] becomes the count of
+     * ids1[i] ids2[i]. A remote store answers them with one round trip per
+     * node instead of one per bigram.
+     */
+    default void getCounts(int[] ids1, int[] ids2, int n, int[] counts) {
+        for (int i = 0; i < n; i++) {
+            counts[i] = getCount(ids1[i], ids2[i]);
+        }
+    }
+
+    /**
+     * Returns whether a lookup leaves the process, so that callers should
+     * collect their bigrams and use getCounts
+     */
+    default boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * Returns the bytes this store keeps outside the heap, e.g. mapped from
+     * a file
+     */
+    default long getOffHeapSize() {
+        return 0;
+    }
+
+    /**
+     * Estimates the bytes this store keeps on the heap from the sizes of its
+     * tables, without measuring the heap
+     */
+    long getHeapSize();
+
+    /**
+     * Returns the count of an n-gram of three or more space-separated words
+     */
+    int getCount(String nGram);
+
+    /**
+     * Returns the number of distinct n-grams
+     */
+    int size();
+
+    /**
+     * Calls visitor with every bigram and longer n-gram and its count, in no
+     * particular order
+     */
+    void forEachNGram(NGramVisitor visitor);
+
+    /**
+     * Raises maxAfter[id1] and maxBefore[id2] to the add-one smoothed count
+     * of every bigram id1 id2, see ConfidenceGate. This takes a pass over all
+     * n-grams; a store that has the maxima at hand overrides it.
+     */
+    default void raiseBigramMaxima(double[] maxAfter, double[] maxBefore) {
+        forEachNGram(new NGramVisitor() {
+            @Override
+            public void bigram(int id1, int id2, int count) {
+                double smoothed = CorpusReader.addOne(count, getCount(id1), size());
+                maxAfter[id1] = Math.max(maxAfter[id1], smoothed);
+                maxBefore[id2] = Math.max(maxBefore[id2], smoothed);
+            }
+
+            @Override
+            public void nGram(String nGram, int count) {
+            }
+        });
+    }
+
+    /**
+     * Receives the n-grams of forEachNGram
+     */
+    interface NGramVisitor {
+
+        void bigram(int id1, int id2, int count);
+
+        // an n-gram of three or more space-separated words
+        void nGram(String nGram, int count);
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Receives the words and counts of the text files while CorpusReader reads
+ * them, and turns them into an NGramStore.
+ *
+ * @author Tijs
+ */
+interface NGramStoreBuilder {
+
+    /**
+     * Returns the id of word, giving it the next free id if it has none yet
+     */
+    int internWord(String word);
+
+    /**
+     * Sets the count of a space-separated n-gram
+     */
+    void put(String nGram, int count);
+
+    NGramStore build();
+}
@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads a UTF-8 text file of lines on all cores. The file is cut into byte
+ * ranges that end at a line break, the ranges are parsed in parallel with
+ * fork/join and every parsed range is handed to a merger in file order, so
+ * the caller can merge them as if the file was read line by line.
+ *
+ * Only a few ranges more than there are cores are parsed ahead of the
+ * merger, and a range is dropped once it is merged, so the parsed lines of
+ * the whole file are never in memory at once.
+ *
+ * A line the parser rejects does not stop the read, it is reported with its
+ * byte offset in the file.
+ *
+ * @author Tijs
+ */
+public class ParallelLineReader {
+
+    final static int MIN_CHUNK_SIZE = 1 << 20;
+    final static int MAX_CHUNK_SIZE = 64 << 20;
+
+    /**
+     * Parses one line into a chunk.
+     */
+    interface LineParser {
+
+        /**
+         * @return false if the line is malformed
+         */
+        boolean parse(String line, Chunk chunk);
+    }
+
+    /**
+     * Merges the parsed ranges, on the thread that called read.
+     */
+    interface ChunkMerger {
+
+        void merge(Chunk chunk);
+    }
+
+    /**
+     * The parsed lines of one byte range: a string and a number per line,
+     * and the malformed lines.
+     */
+    static class Chunk {
+
+        private String[] keys = new String[1024];
+        private int[] values = new int[1024];
+        private int size = 0;
+        final private List<String> problems = new ArrayList<>();
+
+        void add(String key, int value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        String getKey(int i) {
+            return keys[i];
+        }
+
+        int getValue(int i) {
+            return values[i];
+        }
+
+        // the malformed lines, as "offset <byte offset>: <line>"
+        List<String> getProblems() {
+            return problems;
+        }
+    }
+
+    /**
+     * Parses every line of the file and merges the ranges in file order
+     *
+     * @param path
+     * @param parser
+     * @param merger
+     * @throws IOException
+     */
+    static void read(String path, LineParser parser, ChunkMerger merger) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long[] bounds = split(channel);
+            int ranges = bounds.length - 1;
+            // the ranges being parsed or waiting to be merged, in file order
+            int window = ForkJoinPool.commonPool().getParallelism() + 1;
+            ArrayDeque<ParseTask> pending = new ArrayDeque<>();
+            int next = 0;
+            try {
+                while (next < ranges || !pending.isEmpty()) {
+                    while (next < ranges && pending.size() < window) {
+                        ParseTask task = new ParseTask(channel, bounds[next], (int) (bounds[next + 1] - bounds[next]), parser);
+                        ForkJoinPool.commonPool().execute(task);
+                        pending.add(task);
+                        next++;
+                    }
+                    merger.merge(pending.removeFirst().join());
+                }
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            } finally {
+                for (ParseTask task : pending) {
+                    task.cancel(false);
+                }
+            }
+        }
+    }
+
+    // Chunk boundaries: 0, the offsets after the line breaks that end the ranges, and the file size.
+    private static long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long target = size / (ForkJoinPool.commonPool().getParallelism() * 4L);
+        target = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, target));
+
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = target;
+        while (position < size) {
+            long lineEnd = -1;
+            while (lineEnd == -1 && position < size) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                for (int i = 0; i < n && lineEnd == -1; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lineEnd = position + i;
+                    }
+                }
+                position += Math.max(n, 0);
+                if (n <= 0) {
+                    break;
+                }
+            }
+            if (lineEnd == -1) {
+                break;
+            }
+            bounds.add(lineEnd + 1);
+            position = lineEnd + 1 + target;
+        }
+        if (bounds.get(bounds.size() - 1) < size) {
+            bounds.add(size);
+        }
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static class ParseTask extends RecursiveTask<Chunk> {
+
+        final private static long serialVersionUID = 1L;
+
+        final private FileChannel channel;
+        final private long start;
+        final private int length;
+        final private LineParser parser;
+
+        ParseTask(FileChannel channel, long start, int length, LineParser parser) {
+            this.channel = channel;
+            this.start = start;
+            this.length = length;
+            this.parser = parser;
+        }
+
+        @Override
+        protected Chunk compute() {
+            try {
+                return parse(start, length);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private Chunk parse(long start, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            byte[] bytes = buffer.array();
+            int end = buffer.position();
+
+            Chunk chunk = new Chunk();
+            int lineStart = 0;
+            while (lineStart < end) {
+                int lineEnd = lineStart;
+                while (lineEnd < end && bytes[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int textEnd = (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+                String line = new String(bytes, lineStart, textEnd - lineStart, StandardCharsets.UTF_8);
+                if (!parser.parse(line, chunk)) {
+                    chunk.problems.add("offset " + (start + lineStart) + ": <" + line + ">");
+                }
+                lineStart = lineEnd + 1;
+            }
+            return chunk;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Corrected sentences of earlier requests, for the templates, retries and
+ * duplicates a service sees over and over.
+ *
+ * A sentence is normalized before it is looked up, see normalize: any run
+ * of whitespace becomes one space and letters become lower case, which is
+ * how the vocabulary is written. The normalized sentence is what gets
+ * corrected, so every spelling of it gets the same answer. Entries are kept
+ * per model version, see CorrectorHolder, whose numbers are unique in the
+ * process, so the models of a ModelRegistry share the cache without
+ * replacing each other's answers. Requests for a sentence that is being
+ * corrected wait for that correction instead of starting their own.
+ *
+ * @author Tijs
+ */
+public class SentenceCache {
+
+    // corrections, and corrections in progress, by version and normalized sentence
+    final private LruCache<String, String> corrections;
+    final private ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    final private LongAdder hits = new LongAdder();
+    final private LongAdder misses = new LongAdder();
+    final private LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param capacity maximum number of sentences, 0 only coalesces requests
+     */
+    public SentenceCache(int capacity) {
+        corrections = new LruCache<>(capacity);
+    }
+
+    /**
+     * Returns the sentence with single spaces between its words, in lower
+     * case
+     *
+     * @param phrase
+     * @return
+     */
+    static String normalize(String phrase) {
+        StringBuilder sb = new StringBuilder(phrase.length());
+        for (String token : phrase.trim().split("\\s+")) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(token.toLowerCase(Locale.ROOT));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the correction of a normalized phrase for the given model
+     * version, from the cache, from a request that is computing it already,
+     * or from corrector
+     *
+     * @param phrase a phrase returned by normalize
+     * @param version the model version corrector belongs to
+     * @param corrector corrects the phrase, e.g. SpellCorrector::correctPhrase
+     * @return
+     */
+    public String get(String phrase, long version, Function<String, String> corrector) {
+        String key = version + " " + phrase;
+        String correction = corrections.get(key);
+        if (correction != null) {
+            hits.increment();
+            return correction;
+        }
+
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return running.join();
+            } catch (CompletionException ex) {
+                throw (ex.getCause() instanceof RuntimeException) ? (RuntimeException) ex.getCause() : ex;
+            }
+        }
+        try {
+            // a request may have finished it between the lookup and putIfAbsent
+            correction = corrections.get(key);
+            if (correction == null) {
+                misses.increment();
+                correction = corrector.apply(phrase);
+                corrections.put(key, correction);
+            } else {
+                hits.increment();
+            }
+            mine.complete(correction);
+            return correction;
+        } catch (RuntimeException | Error ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of requests that waited for the correction of an
+     * identical request
+     *
+     * @return
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public int size() {
+        return corrections.size();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " misses=" + getMisses() + " coalesced=" + getCoalesced() + " size=" + size();
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a running CorrectionServer with many concurrent clients, using the
+ * phrases of test-sentences.txt.
+ *
+ * Usage: java ServerLoadTest [port] [concurrent clients] [requests]
+ *
+ * @author Tijs
+ */
+public class ServerLoadTest {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : CorrectionServer.DEFAULT_PORT;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        List<String> phrases = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get("test-sentences.txt"), StandardCharsets.UTF_8)) {
+            String trimmedline = line.trim();
+            if (!trimmedline.isEmpty() && !trimmedline.startsWith("#")) {
+                phrases.add(trimmedline.split("=")[0]);
+            }
+        }
+
+        URI uri = URI.create("http://127.0.0.1:" + port + "/correct");
+        HttpClient client = HttpClient.newHttpClient();
+        // at most <clients> requests are open at the same time
+        Semaphore open = new Semaphore(clients);
+        AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<?>> responses = new ArrayList<>(requests);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            open.acquire();
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .POST(HttpRequest.BodyPublishers.ofString(phrases.get(i % phrases.size())))
+                    .build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                    .whenComplete((response, ex) -> {
+                        if (ex != null || response.statusCode() != 200) {
+                            failed.incrementAndGet();
+                        }
+                        open.release();
+                    }));
+        }
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).exceptionally(ex -> null).join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(requests + " requests from " + clients + " clients in " + seconds + " s");
+        System.out.println((requests / seconds) + " requests/s, " + failed.get() + " failed");
+    }
+}
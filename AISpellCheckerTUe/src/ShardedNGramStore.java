@@ -0,0 +1,344 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * N-gram counts partitioned over NGramShardServer processes by the hash of
+ * the bigram key or n-gram. The words, their unigram counts and the
+ * vocabulary are fetched once at connect and kept here, so word ids and
+ * smoothing need no round trip; bigrams and longer n-grams are looked up on
+ * the shard that holds them. At connect every shard must confirm that it is
+ * the shard of its position among the addresses, of that many shards, else
+ * bigrams would be asked of shards that do not hold them and count 0.
+ *
+ * Use getCounts for many bigrams: it sends one request per shard, to all
+ * shards at once. A single getCount is a round trip of its own.
+ *
+ * Connecting to a shard and each lookup must finish within
+ * -Dspellchecker.shardTimeout milliseconds (default 5000), otherwise the
+ * lookup fails with an UncheckedIOException, so a hung shard fails the
+ * sentences that need it instead of blocking them. For the streamed answers
+ * (the words at connect, forEachNGram) the timeout covers the start of the
+ * answer.
+ *
+ * @author Tijs
+ */
+public class ShardedNGramStore implements NGramStore {
+
+    // -Dspellchecker.shards=host:port,host:port,... reads the counts from these shard servers, in shard order
+    final static String SHARDS = System.getProperty("spellchecker.shards");
+    // milliseconds, can be set with -Dspellchecker.shardTimeout=...
+    final static long TIMEOUT = Long.getLong("spellchecker.shardTimeout", 5000);
+
+    final private HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofMillis(TIMEOUT))
+            .build();
+    final private URI[] shards;
+    final private HashMap<String, Integer> wordIds = new HashMap<>();
+    final private String[] words;
+    final private int[] unigrams;
+    final private Set<String> vocabulary = new HashSet<>();
+    final private int size;
+
+    private ShardedNGramStore(URI[] shards) throws IOException {
+        this.shards = shards;
+        try (DataInputStream in = new DataInputStream(get(shards[0], "/words"))) {
+            words = new String[in.readInt()];
+            unigrams = new int[words.length];
+            size = in.readInt();
+            for (int id = 0; id < words.length; id++) {
+                words[id] = in.readUTF();
+                unigrams[id] = in.readInt();
+                wordIds.put(words[id], id);
+                if (in.readBoolean()) {
+                    vocabulary.add(words[id]);
+                }
+            }
+        }
+        for (int shard = 0; shard < shards.length; shard++) {
+            try (DataInputStream in = new DataInputStream(get(shards[shard], "/info"))) {
+                int index = in.readInt();
+                int count = in.readInt();
+                int wordCount = in.readInt();
+                int storeSize = in.readInt();
+                if (index != shard || count != shards.length) {
+                    throw new IOException(shards[shard] + " serves shard " + index + " of " + count
+                            + ", but is given as shard " + shard + " of " + shards.length);
+                }
+                if (wordCount != words.length || storeSize != size) {
+                    throw new IOException(shards[shard] + " serves another model than " + shards[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects to the shard servers and checks that each serves the shard of
+     * its position in addresses, of as many shards as there are addresses,
+     * and of the same model
+     *
+     * @param addresses host:port per shard, comma-separated, in shard order
+     * @return
+     * @throws IOException if a shard does not answer, or serves another
+     * shard, number of shards or model
+     */
+    public static ShardedNGramStore connect(String addresses) throws IOException {
+        List<URI> shards = new ArrayList<>();
+        for (String address : addresses.split(",")) {
+            if (!address.trim().isEmpty()) {
+                shards.add(URI.create("http://" + address.trim()));
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("no shard addresses in " + addresses);
+        }
+        return new ShardedNGramStore(shards.toArray(new URI[0]));
+    }
+
+    /**
+     * Returns the shard of a bigram key, see HashNGramStore.bigramKey
+     */
+    static int shardOf(long bigramKey, int shards) {
+        return Math.floorMod(LongIntHashMap.hash(bigramKey), shards);
+    }
+
+    /**
+     * Returns the shard of an n-gram of three or more words
+     */
+    static int shardOf(String nGram, int shards) {
+        return Math.floorMod(LongIntHashMap.hash(nGram.hashCode()), shards);
+    }
+
+    public Set<String> getVocabulary() {
+        return Collections.unmodifiableSet(vocabulary);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public int getWordId(String word) {
+        Integer id = wordIds.get(word);
+        return id == null ? -1 : id;
+    }
+
+    @Override
+    public String getWord(int wordId) {
+        return words[wordId];
+    }
+
+    @Override
+    public int getWordCount() {
+        return words.length;
+    }
+
+    @Override
+    public int getCount(int wordId) {
+        return wordId < 0 ? 0 : unigrams[wordId];
+    }
+
+    @Override
+    public int getCount(int id1, int id2) {
+        int[] counts = new int[1];
+        getCounts(new int[]{id1}, new int[]{id2}, 1, counts);
+        return counts[0];
+    }
+
+    @Override
+    public void getCounts(int[] ids1, int[] ids2, int n, int[] counts) {
+        // the positions of the bigrams per shard, bigrams with an unknown word have count 0
+        int[][] positions = new int[shards.length][];
+        int[] sizes = new int[shards.length];
+        for (int i = 0; i < n; i++) {
+            counts[i] = 0;
+            if (ids1[i] < 0 || ids2[i] < 0) {
+                continue;
+            }
+            int shard = shardOf(HashNGramStore.bigramKey(ids1[i], ids2[i]), shards.length);
+            if (positions[shard] == null) {
+                positions[shard] = new int[n];
+            }
+            positions[shard][sizes[shard]++] = i;
+        }
+
+        List<CompletableFuture<Void>> answers = new ArrayList<>();
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (sizes[shard] == 0) {
+                continue;
+            }
+            int[] shardPositions = positions[shard];
+            int shardSize = sizes[shard];
+            ByteArrayOutputStream body = new ByteArrayOutputStream(4 + 8 * shardSize);
+            try (DataOutputStream out = new DataOutputStream(body)) {
+                out.writeInt(shardSize);
+                for (int j = 0; j < shardSize; j++) {
+                    int i = shardPositions[j];
+                    out.writeLong(HashNGramStore.bigramKey(ids1[i], ids2[i]));
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            answers.add(post(shards[shard], "/bigrams", body.toByteArray()).thenAccept(in -> {
+                try (DataInputStream data = new DataInputStream(in)) {
+                    for (int j = 0; j < shardSize; j++) {
+                        counts[shardPositions[j]] = data.readInt();
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }));
+        }
+        join(answers);
+    }
+
+    @Override
+    public int getCount(String nGram) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeInt(1);
+            out.writeUTF(nGram);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        CompletableFuture<Integer> count = post(shards[shardOf(nGram, shards.length)], "/ngrams", body.toByteArray())
+                .thenApply(in -> {
+                    try (DataInputStream data = new DataInputStream(in)) {
+                        return data.readInt();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+        join(List.of(count));
+        return count.join();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getHeapSize() {
+        return wordIds.size() * (ENTRY_BYTES + STRING_BYTES + 8) + vocabulary.size() * ENTRY_BYTES;
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    /**
+     * Takes the maxima every shard computed over its own bigrams, so that no
+     * bigram is sent here
+     */
+    @Override
+    public void raiseBigramMaxima(double[] maxAfter, double[] maxBefore) {
+        for (URI shard : shards) {
+            try (DataInputStream in = new DataInputStream(get(shard, "/gate"))) {
+                for (int id = 0; id < words.length; id++) {
+                    maxAfter[id] = Math.max(maxAfter[id], in.readDouble());
+                    maxBefore[id] = Math.max(maxBefore[id], in.readDouble());
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Streams the n-grams of every shard, one shard after the other
+     */
+    @Override
+    public void forEachNGram(NGramVisitor visitor) {
+        for (URI shard : shards) {
+            try (DataInputStream in = new DataInputStream(get(shard, "/dump"))) {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == NGramShardServer.BIGRAM) {
+                        visitor.bigram(in.readInt(), in.readInt(), in.readInt());
+                    } else if (type == NGramShardServer.NGRAM) {
+                        visitor.nGram(in.readUTF(), in.readInt());
+                    } else {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private InputStream get(URI shard, String path) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(shard.resolve(path))
+                .timeout(Duration.ofMillis(TIMEOUT))
+                .GET()
+                .build();
+        try {
+            return check(shard, client.send(request, HttpResponse.BodyHandlers.ofInputStream()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading " + path + " from " + shard, ex);
+        }
+    }
+
+    // The answer is read whole, so the timeout covers it up to its last byte.
+    private CompletableFuture<InputStream> post(URI shard, String path, byte[] body) {
+        HttpRequest request = HttpRequest.newBuilder(shard.resolve(path))
+                .timeout(Duration.ofMillis(TIMEOUT))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new UncheckedIOException(new IOException("shard " + shard + " answered status " + response.statusCode()));
+            }
+            return (InputStream) new ByteArrayInputStream(response.body());
+        }).orTimeout(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static InputStream check(URI shard, HttpResponse<InputStream> response) throws IOException {
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("shard " + shard + " answered status " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    // Waits for all answers; a failed or timed out request is thrown as UncheckedIOException.
+    private static void join(List<? extends CompletableFuture<?>> answers) {
+        try {
+            CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) ex.getCause());
+            }
+            if (ex.getCause() instanceof TimeoutException) {
+                throw new UncheckedIOException(new HttpTimeoutException("a shard did not answer within " + TIMEOUT + " ms"));
+            }
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Writes a trace of every sentence whose correction took longer than
+ * -Dspellchecker.slowMillis (default 1000, a negative number turns it off,
+ * 0 traces every sentence) as one JSON object per line.
+ *
+ * The trace is taken from the lattice after the correction: the words with
+ * their best-scored candidates, the number of hypotheses, the time per stage
+ * (see CorrectionMetrics) and the best few sentences with their scores. A
+ * sentence under the threshold so costs one comparison, and nothing is
+ * recorded while it is corrected.
+ *
+ * The lines go to -Dspellchecker.slowLog (default slow-requests.%g.log, see
+ * FileHandler for the pattern), which rotates after
+ * -Dspellchecker.slowLogBytes (default 10 MB) over
+ * -Dspellchecker.slowLogFiles files (default 5). The file is created at the
+ * first slow sentence.
+ *
+ * @author Tijs
+ */
+public class SlowRequestLog {
+
+    final static long THRESHOLD_NANOS = Long.getLong("spellchecker.slowMillis", 1000) * 1000000;
+    final static String FILE = System.getProperty("spellchecker.slowLog", "slow-requests.%g.log");
+    final static int FILE_BYTES = Integer.getInteger("spellchecker.slowLogBytes", 10 * 1024 * 1024);
+    final static int FILES = Integer.getInteger("spellchecker.slowLogFiles", 5);
+    // per position the candidates with the highest scores, and the best sentences, that are written
+    final static int TOP_CANDIDATES = 10;
+    final static int TOP_SENTENCES = 5;
+
+    // opened at the first trace
+    private static class Traces {
+
+        final static Logger LOGGER = open();
+    }
+
+    private static Logger open() {
+        Logger logger = Logger.getLogger(SlowRequestLog.class.getName() + ".traces");
+        logger.setUseParentHandlers(false);
+        try {
+            FileHandler handler = new FileHandler(FILE, FILE_BYTES, FILES, true);
+            handler.setEncoding("UTF-8");
+            handler.setFormatter(new Formatter() {
+                @Override
+                public String format(LogRecord record) {
+                    return record.getMessage() + "\n";
+                }
+            });
+            logger.addHandler(handler);
+        } catch (IOException ex) {
+            Logger.getLogger(SlowRequestLog.class.getName()).log(Level.WARNING, "cannot open " + FILE + ", slow sentences are not traced", ex);
+        }
+        return logger;
+    }
+
+    /**
+     * Checks whether a correction took long enough to be traced
+     *
+     * @param nanos
+     * @return
+     */
+    static boolean isSlow(long nanos) {
+        return THRESHOLD_NANOS >= 0 && nanos >= THRESHOLD_NANOS;
+    }
+
+    /**
+     * Writes the trace of one correction. Fails silently apart from a
+     * warning, so tracing never breaks a correction.
+     *
+     * @param method the method that corrected
+     * @param phrase
+     * @param result the sentence that was returned
+     * @param finished false if the search ran out of its budget
+     * @param lattice
+     * @param maxCorrections the corrections the lattice was decoded with
+     * @param start System.nanoTime at the start of the correction
+     * @param candidatesDone System.nanoTime after candidate generation
+     * @param scoringDone System.nanoTime after scoring
+     * @param end System.nanoTime after selection
+     */
+    static void write(String method, String phrase, String result, boolean finished, CorrectionLattice lattice,
+            int maxCorrections, long start, long candidatesDone, long scoringDone, long end) {
+        try {
+            StringBuilder sb = new StringBuilder(1024);
+            sb.append("{\"time\":");
+            string(sb, Instant.now().toString());
+            sb.append(",\"method\":");
+            string(sb, method);
+            sb.append(",\"phrase\":");
+            string(sb, phrase);
+            sb.append(",\"result\":");
+            string(sb, result);
+            sb.append(",\"finished\":").append(finished);
+            sb.append(",\"totalNanos\":").append(end - start);
+            sb.append(",\"candidatesNanos\":").append(candidatesDone - start);
+            sb.append(",\"scoringNanos\":").append(scoringDone - candidatesDone);
+            sb.append(",\"selectionNanos\":").append(end - scoringDone);
+            sb.append(",\"hypotheses\":").append(lattice.countHypotheses(maxCorrections));
+
+            sb.append(",\"positions\":[");
+            for (int i = 0; i < lattice.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                position(sb, lattice, i);
+            }
+            sb.append("],\"top\":[");
+            KBestIterator kBest = lattice.kBest(maxCorrections);
+            for (int n = 0; n < TOP_SENTENCES && kBest.hasNext(); n++) {
+                Correction correction = kBest.next();
+                if (n > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"sentence\":");
+                string(sb, correction.getSentence().trim());
+                sb.append(",\"score\":");
+                number(sb, correction.getScore());
+                sb.append('}');
+            }
+            sb.append("]}");
+            Traces.LOGGER.info(sb.toString());
+        } catch (RuntimeException ex) {
+            Logger.getLogger(SlowRequestLog.class.getName()).log(Level.WARNING, "cannot trace a slow sentence", ex);
+        }
+    }
+
+    // The word, whether it must be corrected, and its best-scored candidates.
+    private static void position(StringBuilder sb, CorrectionLattice lattice, int i) {
+        String[] candidates = lattice.getCandidates(i);
+        sb.append("{\"word\":");
+        string(sb, lattice.getWord(i));
+        sb.append(",\"forced\":").append(lattice.isForced(i));
+        sb.append(",\"candidateCount\":").append(candidates.length);
+        sb.append(",\"candidates\":[");
+        Integer[] order = new Integer[candidates.length];
+        for (int c = 0; c < order.length; c++) {
+            order[c] = c;
+        }
+        Arrays.sort(order, Comparator.comparingDouble((Integer c) -> lattice.getScore(i, c)).reversed());
+        for (int n = 0; n < Math.min(TOP_CANDIDATES, order.length); n++) {
+            if (n > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"word\":");
+            string(sb, candidates[order[n]]);
+            sb.append(",\"score\":");
+            number(sb, lattice.getScore(i, order[n]));
+            sb.append('}');
+        }
+        sb.append("]}");
+    }
+
+    private static void number(StringBuilder sb, double value) {
+        // JSON has no infinities or NaN
+        if (Double.isFinite(value)) {
+            sb.append(value);
+        } else {
+            sb.append("null");
+        }
+    }
+
+    private static void string(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
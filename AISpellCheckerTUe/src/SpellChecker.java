@@ -1,30 +1,61 @@
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.PriorityQueue;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class SpellChecker {
 
+    // lines per thread that may be queued in batch mode
+    final static int BATCH_WINDOW = 64;
+
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments, "--batch [file]" corrects every
+     * line of file (or stdin) in parallel, "--server [port]" serves corrections
+     * over HTTP on localhost, where POST /reload loads the model files again and
+     * -Dspellchecker.models adds models, see ModelRegistry
      */
     public static void main(String[] args) 
     {
         boolean inPeach = true; // set this to true if you submit to peach!!!
         
         try {
-            CorpusReader cr = new CorpusReader();
-            ConfusionMatrixReader cmr = new ConfusionMatrixReader();
-            SpellCorrector sc = new SpellCorrector(cr, cmr);
-            if (inPeach) {
-                peachTest(sc);
-            } else {
-//                testCMProbability(sc);
-                nonPeachTest(sc);
+            if (args.length > 0 && args[0].equals("--server")) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : CorrectionServer.DEFAULT_PORT;
+                ModelRegistry registry = new ModelRegistry();
+                // the default model is loaded before the first request, the others on theirs
+                registry.acquire(ModelRegistry.DEFAULT_MODEL).close();
+                CorrectionServer server = new CorrectionServer(registry, port);
+                Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+                server.start();
+                System.out.println("Serving corrections on http://localhost:" + server.getPort() + "/correct");
+                return;
+            }
+            CorrectorHolder holder = new CorrectorHolder(CorrectorHolder::loadFromFiles);
+            holder.getMetrics().register(ModelRegistry.DEFAULT_MODEL);
+            try (CorrectorHolder.Snapshot snapshot = holder.acquire()) {
+                SpellCorrector sc = snapshot.getCorrector();
+                if (args.length > 0 && args[0].equals("--batch")) {
+                    InputStream input = args.length > 1 ? new FileInputStream(args[1]) : System.in;
+                    batchTest(sc, input, System.out, Runtime.getRuntime().availableProcessors());
+                } else if (inPeach) {
+                    peachTest(sc);
+                } else {
+//                    testCMProbability(sc);
+                    nonPeachTest(sc);
+                }
             }
         } catch (Exception ex) {
             System.out.println(ex);
@@ -73,6 +104,72 @@ public class SpellChecker {
             }
     }
     
+    /**
+     * Corrects every line of input on all threads and writes the results to
+     * output in input order, one line each. Lines like "phrase=answer" are
+     * counted for the accuracy, which is reported on stderr; empty lines and
+     * lines starting with # are not corrected and get an empty line, so line
+     * n of the output always belongs to line n of the input. At most
+     * BATCH_WINDOW lines per thread are in flight, so any input size can be
+     * streamed.
+     */
+    static void batchTest(SpellCorrector sc, InputStream input, PrintStream output, int threads)
+            throws IOException, InterruptedException, ExecutionException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+        // expected answer per pending line, "" when there is none
+        ArrayDeque<String> expected = new ArrayDeque<>();
+        int[] score = new int[2]; // correct, tested
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String trimmedline = line.trim();
+                final String phrase;
+                if (trimmedline.isEmpty() || trimmedline.startsWith("#")) {
+                    // an empty answer keeps the output in step with the input
+                    phrase = null;
+                    expected.add("");
+                } else if (trimmedline.contains("=")) {
+                    phrase = trimmedline.split("=")[0];
+                    expected.add(trimmedline.split("=")[1]);
+                } else {
+                    phrase = trimmedline;
+                    expected.add("");
+                }
+                pending.add(phrase == null ? CompletableFuture.completedFuture("")
+                        : executor.submit(() -> sc.correctPhrase(phrase)));
+
+                if (pending.size() >= threads * BATCH_WINDOW) {
+                    writeResult(pending.poll().get(), expected.poll(), output, score);
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeResult(pending.poll().get(), expected.poll(), output, score);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        output.flush();
+        if (score[1] > 0) {
+            System.err.println("Correct: " + score[0] + "/" + score[1]);
+        }
+        System.err.println("Candidate cache: " + sc.getCandidateCache());
+        System.err.println("Smoothed count cache: " + sc.getSmoothedCountCache());
+        System.err.print(sc.getMetrics().getSnapshot());
+    }
+
+    private static void writeResult(String result, String projectedAnswer, PrintStream output, int[] score) {
+        output.println(result);
+        if (!projectedAnswer.isEmpty()) {
+            score[1]++;
+            if (result.equals(projectedAnswer)) {
+                score[0]++;
+            }
+        }
+    }
+
     // Method to test the channel model probability function
     static void testCMProbability(SpellCorrector sc) {
         while(true) {
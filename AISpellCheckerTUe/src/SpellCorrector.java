@@ -3,37 +3,112 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Set;
 
+/**
+ * Corrects phrases with the noisy-channel model. After construction an
+ * instance only reads its readers and candidate index, so one instance can
+ * be shared by any number of threads.
+ */
 public class SpellCorrector {
 
     final private CorpusReader cr;
     final private ConfusionMatrixReader cmr;
-    final private boolean DEBUG = false;
-    final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz'".toCharArray();
+    final private DeleteIndex candidateIndex;
+    // candidate sets per word and smoothed counts per bigram key, see CorpusReader.getWordId
+    final private LruCache<String, String[]> candidateCache;
+    final private LruCache<Long, Double> smoothedCountCache;
+    // null for add-one smoothing
+    final private KneserNeyModel kneserNey;
+    // null if every word of a clean sentence is searched
+    final private ConfidenceGate gate;
+    final private CorrectionMetrics metrics;
+    final private static char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz'".toCharArray();
+    // at most 2 words of a sentence are corrected, and never two neighbours (with Kneser-Ney not two apart either, see getGap)
+    final static int MAX_CORRECTIONS = 2;
+    final static String[] NO_CANDIDATES = new String[0];
+
+    // default cache sizes, can be set with -Dspellchecker.candidateCache=... and -Dspellchecker.smoothedCache=...;
+    // smoothed counts are only cached for a remote store, a local one answers with two primitive map reads,
+    // which is cheaper than the boxed and locked cache lookup
+    final static int CANDIDATE_CACHE_SIZE = Integer.getInteger("spellchecker.candidateCache", 10000);
+    final static int SMOOTHED_CACHE_SIZE = Integer.getInteger("spellchecker.smoothedCache", 100000);
+    // -Dspellchecker.smoothing=kneser-ney scores with Kneser-Ney probabilities and trigram context instead
+    final static String SMOOTHING = System.getProperty("spellchecker.smoothing", "add-one");
+    // -Dspellchecker.gateMargin=<gain> only searches the words whose best alternative could gain more than that,
+    // 0 gives the same corrections as searching every word, off searches every word
+    final static String GATE_MARGIN = System.getProperty("spellchecker.gateMargin", "0");
 
     public SpellCorrector(CorpusReader cr, ConfusionMatrixReader cmr) {
+        this(cr, cmr, CANDIDATE_CACHE_SIZE, cr.isRemote() ? SMOOTHED_CACHE_SIZE : 0);
+    }
+
+    /**
+     * Records into metrics that are shared with other correctors, e.g. the
+     * versions of a CorrectorHolder
+     */
+    public SpellCorrector(CorpusReader cr, ConfusionMatrixReader cmr, CorrectionMetrics metrics) {
+        this(cr, cmr, CANDIDATE_CACHE_SIZE, cr.isRemote() ? SMOOTHED_CACHE_SIZE : 0, metrics);
+    }
+
+    /**
+     * @param candidateCacheSize number of words whose candidates are cached, 0 disables the cache
+     * @param smoothedCacheSize number of bigrams whose smoothed count is cached, 0 disables the cache
+     */
+    public SpellCorrector(CorpusReader cr, ConfusionMatrixReader cmr, int candidateCacheSize, int smoothedCacheSize) {
+        this(cr, cmr, candidateCacheSize, smoothedCacheSize, new CorrectionMetrics());
+    }
+
+    public SpellCorrector(CorpusReader cr, ConfusionMatrixReader cmr, int candidateCacheSize, int smoothedCacheSize,
+            CorrectionMetrics metrics) {
         this.cr = cr;
         this.cmr = cmr;
+        this.candidateIndex = cr.getDeleteIndex(ALPHABET);
+        this.candidateCache = new LruCache<>(candidateCacheSize);
+        this.smoothedCountCache = new LruCache<>(smoothedCacheSize);
+        this.metrics = metrics;
+        switch (SMOOTHING) {
+            case "add-one":
+                this.kneserNey = null;
+                break;
+            case "kneser-ney":
+                this.kneserNey = cr.getKneserNeyModel();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown smoothing " + SMOOTHING);
+        }
+        // the bounds are of add-one smoothed counts
+        if (kneserNey == null && !"off".equals(GATE_MARGIN)) {
+            this.gate = new ConfidenceGate(cr, Double.parseDouble(GATE_MARGIN));
+        } else {
+            this.gate = null;
+        }
     }
 
-    private void printPhraseMatrix(String sentence, List<Set<String>> sentenceMashups) {
-        if (!DEBUG) {
-            return;
-        }
-        System.out.println(sentence);
-        System.out.println("-----------------------------------------------------------------------------------");
+    /**
+     * Estimates the bytes of the model from the sizes of its counts, vocabulary and indexes, mapped files
+     * included, without measuring the heap. The caches are not counted.
+     */
+    long estimateFootprint() {
+        return cr.getHeapSize() + cr.getOffHeapSize() + candidateIndex.getHeapSize()
+                + (gate == null ? 0 : gate.getHeapSize());
+    }
 
-        for (int j = 0; j < sentenceMashups.size(); j++) {
-            Set<String> wordmatrix = sentenceMashups.get(j);
-            Object wordsuggestions[] = wordmatrix.toArray();
-            for (int i = 0; i < wordsuggestions.length; i++) {
-                System.out.print(wordsuggestions[i] + "\t");
-            }
-            System.out.print("\n");
-        }
-        System.out.println("-----------------------------------------------------------------------------------");
+    LruCache<String, String[]> getCandidateCache() {
+        return candidateCache;
+    }
+
+    LruCache<Long, Double> getSmoothedCountCache() {
+        return smoothedCountCache;
+    }
+
+    /**
+     * Returns the latency histograms and counters of this corrector, see
+     * CorrectionMetrics.register to publish them through JMX
+     *
+     * @return
+     */
+    public CorrectionMetrics getMetrics() {
+        return metrics;
     }
 
     /*
@@ -50,265 +125,457 @@ public class SpellCorrector {
                 throw new IllegalArgumentException("phrase must be non-empty.");
             }
 
-            // List of words (in sentence order), containing all suggestions and their channel model prob. per word.
-            List<Set<String>> sentenceWordSuggestions = new ArrayList();
-
+            long start = System.nanoTime();
             String[] words = phrase.split(" ");
-            String finalSuggestion = "";
+            // List of words (in sentence order), containing all suggestions per word.
+            String[][] sentenceWordSuggestions = new String[words.length][];
+            boolean[] forced = findCandidates(words, sentenceWordSuggestions, true);
 
-            // there are at most 2 erronous words of distance 1, this array is their indexes in the sentence.
-            List<Integer> wrongwords = new ArrayList();
+            /**
+             * Instead of building every combination of suggestions as a sentence we score every suggestion once, in
+             * its place in the lattice, and let the lattice find the best combination of at most 2 corrections.
+             */
+            long candidatesDone = System.nanoTime();
+            CorrectionLattice lattice = buildLattice(words, sentenceWordSuggestions, forced);
+            long scoringDone = System.nanoTime();
+            String result = correctLattice(lattice);
+            long end = System.nanoTime();
+            metrics.recordSentence(lattice, MAX_CORRECTIONS, start, candidatesDone, scoringDone, end);
+            if (SlowRequestLog.isSlow(end - start)) {
+                SlowRequestLog.write("correctPhrase", phrase, result, true, lattice, MAX_CORRECTIONS,
+                        start, candidatesDone, scoringDone, end);
+            }
+            return result;
 
-            for (int i = 0; i < words.length; i++) {
-                String word = words[i];
-                HashSet<String> candidate_words = getCandidateWords(word);
-
-                if (!cr.inVocabulary(word)) {
-                    // Now we know for sure that the words connected to this wrong word are correct, so delete their suggestions.
-                    wrongwords.add(i);
-                    if (i > 1) {
-                        // Replace previous set of suggested words for the previous word with prob. 1.0
-                        Set<String> prev_candidate_words_cmp = sentenceWordSuggestions.get(i - 1);
-                        sentenceWordSuggestions.remove(prev_candidate_words_cmp);
-                        prev_candidate_words_cmp = new HashSet();
-                        prev_candidate_words_cmp.add(words[i - 1]);
-                        sentenceWordSuggestions.add(prev_candidate_words_cmp);
-                    }
-                } else {
-                    // The current word is a candidate too if it exists in the vocabulary.
-                    candidate_words.add(word);
-                }
+        } catch (Exception e) {
+            metrics.recordFailed();
+            // Just make sure that if for some reason the previous fails, we do not die terribly.
+            return "We could not create any possible resulting sentence :'(";
+        }
+    }
 
-                sentenceWordSuggestions.add(candidate_words);
+    /**
+     * Returns the k best corrections of the phrase with their scores, best
+     * first. Only the returned corrections are taken from the lattice, so a
+     * few suggestions cost hardly more than the best one. The list is empty
+     * when the phrase can not be corrected, e.g. when more than 2 words are
+     * not in the vocabulary.
+     *
+     * @param phrase
+     * @param k the maximum number of corrections
+     * @return
+     */
+    public List<Correction> getCorrections(String phrase, int k) {
+        if (phrase == null || phrase.length() == 0) {
+            throw new IllegalArgumentException("phrase must be non-empty.");
+        }
+        String[] words = phrase.split(" ");
+        String[][] candidates = new String[words.length][];
+        // every alternative is ranked, also the ones that lose
+        boolean[] forced = findCandidates(words, candidates, false);
+
+        // k can be far more than there are corrections, so the list grows as they come
+        List<Correction> corrections = new ArrayList<>(Math.min(k, 16));
+        KBestIterator kBest = buildLattice(words, candidates, forced).kBest(MAX_CORRECTIONS);
+        while (corrections.size() < k && kBest.hasNext()) {
+            corrections.add(kBest.next());
+        }
+        return corrections;
+    }
 
-                if (!cr.inVocabulary(word) && i < words.length - 1) {
-                    // skip next word
-                    Set<String> next_candidate_words_cmp = new HashSet();
-                    next_candidate_words_cmp.add(words[i + 1]);
-                    sentenceWordSuggestions.add(next_candidate_words_cmp);
-                    i++;
-                }
-            }
+    /**
+     * Corrects a phrase with any number of words that are not in the
+     * vocabulary, within a budget. The words that must be corrected get their
+     * candidates first, then the others from left to right; when the time or
+     * the number of scored candidates runs out, the remaining words are kept
+     * as they are and the best sentence of what was scored is returned. Up to
+     * 2 corrections are made, or one per word that is not in the vocabulary
+     * if there are more of those. Words that have no candidates are kept.
+     *
+     * For at most 2 such words and an unlimited budget the sentence is the
+     * one correctPhrase returns.
+     *
+     * @param phrase
+     * @param timeoutNanos the time the search may take, checked between words
+     * @param maxHypotheses the number of candidates that may be scored
+     * @return the best correction found, not finished if the budget ran out
+     */
+    public Correction correctWithin(String phrase, long timeoutNanos, long maxHypotheses) {
+        if (phrase == null || phrase.length() == 0) {
+            throw new IllegalArgumentException("phrase must be non-empty.");
+        }
+        long start = System.nanoTime();
+        String[] words = phrase.split(" ");
+        int[] ids = new int[words.length];
+        boolean[] known = new boolean[words.length];
+        for (int i = 0; i < words.length; i++) {
+            ids[i] = cr.getWordId(words[i]);
+            known[i] = cr.inVocabulary(words[i]);
+        }
+        boolean[] frozen = new boolean[words.length];
+        boolean[] forced = markErrors(known, frozen);
+        int gap = getGap(forced);
 
-            if (DEBUG) {
-                System.out.println("ERROR WORDS:" + Arrays.deepToString(wrongwords.toArray()));
+        // the words that must be corrected first
+        int[] order = new int[words.length];
+        int next = 0;
+        for (int i = 0; i < words.length; i++) {
+            if (forced[i]) {
+                order[next++] = i;
             }
-            printPhraseMatrix(phrase, sentenceWordSuggestions);
-
-            // Generate all possible sentences
-            List<Sentence> possibleSentences = new ArrayList();
-            // Default sentence (of maybe incorrect words)
-            List<String> default_sentence = to_list(phrase);
-            // Array of mashup sentences (as lists)
-            List<List<String>> lssb = new ArrayList();
-
-            if (wrongwords.size() == 2) {
-            // 2 erronous words, therefore all other words must be correct
-
-                int w1_index = wrongwords.get(0);
-                int w2_index = wrongwords.get(1);
-
-                for (String sugg_word : sentenceWordSuggestions.get(w1_index)) {
-                    List sb_new = new ArrayList(default_sentence);
-                    sb_new.set(w1_index, sugg_word);
-
-                    for (String sugg_word_two : sentenceWordSuggestions.get(w2_index)) {
-                        List sb_new_copy = new ArrayList(sb_new);
-                        sb_new_copy.set(w2_index, sugg_word_two);
-                        lssb.add(sb_new_copy);
-                    }
-                }
-
-                for (int j = 0; j < lssb.size(); j++) {
-                    List l = lssb.get(j);
-                    possibleSentences.add(new Sentence(to_sentence(l)));
-                }
+        }
+        for (int i = 0; i < words.length; i++) {
+            if (!forced[i]) {
+                order[next++] = i;
+            }
+        }
 
-                // TODO: clean up inside this switch and then merge code of the full condition.
-            } else if (wrongwords.size() == 1) {
-            // at most 2 wrong words at the same time, so this one and for every word add its suggestions
-                // So take the wrong sentence, make many suggested sentences with 1 word replaced for its suggestion
-
-                // Generate a sentence for any suggested replacement word
-                int w1_index = wrongwords.get(0);
-                for (String sugg_word : sentenceWordSuggestions.get(w1_index)) {
-                    List mashup_sentence = new ArrayList(default_sentence);
-                    mashup_sentence.set(w1_index, sugg_word);
-                    lssb.add(mashup_sentence);
-                    possibleSentences.add(new Sentence(to_sentence(mashup_sentence)));
-                }
+        String[][] candidates = new String[words.length][];
+        double[][] scores = new double[words.length][];
+        Arrays.fill(candidates, NO_CANDIDATES);
+        Arrays.fill(scores, new double[0]);
+        long hypotheses = 0;
+        boolean finished = true;
+        for (int i : order) {
+            if (frozen[i]) {
+                continue;
+            }
+            if (System.nanoTime() - start >= timeoutNanos || hypotheses >= maxHypotheses) {
+                finished = false;
+                break;
+            }
+            String[] all = getCandidateArray(words[i]);
+            int count = (int) Math.min(all.length, maxHypotheses - hypotheses);
+            if (count < all.length) {
+                finished = false;
+            }
+            candidates[i] = (count == all.length) ? all : Arrays.copyOf(all, count);
+            if (prefetchesBigrams()) {
+                LongIntHashMap batch = new LongIntHashMap();
+                collectBigrams(ids, i, candidates[i], batch);
+                fetchBigrams(batch);
+            }
+            scores[i] = new double[count];
+            for (int c = 0; c < count; c++) {
+                scores[i][c] = calculateCorrectionScore(ids, i, cr.getWordId(all[c]), gap);
+            }
+            hypotheses += count;
+        }
+        long candidatesDone = System.nanoTime();
 
-                // For any generated sentence: generate a new sentence where each word is replaced by a suggestion of it.
-                int lssb_size = lssb.size();
-                for (int i = 0; i < words.length; i++) {
-                    // The neighbour words of a wrong word are always correct, so they have no suggestions
-                    if (Math.abs(w1_index - i) > 1) {
-                        // replace word i by every suggestion except this wrong word
-                        for (int j = 0; j < lssb_size; j++) {
-                            List mashup_sentence = lssb.get(j);
-                            for (String sugg_word : sentenceWordSuggestions.get(i)) {
-                                List mashup_sentence_new = new ArrayList(mashup_sentence);
-                                mashup_sentence_new.set(i, sugg_word);
-                                possibleSentences.add(new Sentence(to_sentence(mashup_sentence_new)));
-                            }
-                        }
-                    }
-                }
+        // a wrong word without candidates is kept, the others are corrected
+        int wrong = 0;
+        for (int i = 0; i < words.length; i++) {
+            if (forced[i] && candidates[i].length == 0) {
+                forced[i] = false;
+            } else if (forced[i]) {
+                wrong++;
+            }
+        }
+        int maxCorrections = Math.max(MAX_CORRECTIONS, wrong);
+        CorrectionLattice lattice = new CorrectionLattice(words, candidates, scores, forced, gap);
+        int[] choices = lattice.decode(maxCorrections);
+        Correction correction = new Correction(lattice.toSentence(choices).trim(), lattice.score(choices), finished);
+        long end = System.nanoTime();
+        // candidates are scored as they are looked up, which counts as candidate generation
+        metrics.recordSentence(lattice, maxCorrections, start, candidatesDone, candidatesDone, end);
+        if (SlowRequestLog.isSlow(end - start)) {
+            SlowRequestLog.write("correctWithin", phrase, correction.getSentence(), finished, lattice, maxCorrections,
+                    start, candidatesDone, candidatesDone, end);
+        }
+        return correction;
+    }
 
-            } else if (wrongwords.size() == 0) {
-            // This is where it gets tricky, if two words have too much suggestions we are dead..
-                // for all w1,w2:
-                //  rest of sentence + cartesian product of w1 and w2
-
-                // Since the sentence contains no direct errors, it is a suggestion by itself too.
-                lssb.add(default_sentence);
-
-                // k is index of wrong word 1 (replace with all suggestions)
-                // i is index of wrong word 2 (replace with all suggestions)
-                // if(i==k) then there is just 1 wrong word (replace wi or wk with all suggestions)
-                for (int k = 0; k < words.length - 2; k++) {
-                    for (int i = k + 2; i < words.length; i++) {
-
-                        // replace word i by every suggestion except this wrong word
-                        for (String sugg_word : sentenceWordSuggestions.get(k)) {
-                            List mashup_sentence = new ArrayList(default_sentence);
-                            mashup_sentence.set(k, sugg_word);
-                            if(i != k) {
-                                for (String sugg_word_two : sentenceWordSuggestions.get(i)) {
-                                    mashup_sentence.set(i, sugg_word_two);
-                                    possibleSentences.add(new Sentence(to_sentence(mashup_sentence)));
-                                }
-                            }
-                        }
-                    }
-                }
+    /**
+     * Fills the suggestions per word, returns per word whether it must be corrected, see markErrors. With gated,
+     * a word that is not wrong gets no suggestions if the gate finds that none could improve the sentence enough,
+     * so a clean sentence only has its suspicious words searched.
+     */
+    private boolean[] findCandidates(String[] words, String[][] candidates, boolean gated) {
+        boolean[] known = new boolean[words.length];
+        for (int i = 0; i < words.length; i++) {
+            known[i] = cr.inVocabulary(words[i]);
+        }
+        boolean[] frozen = new boolean[words.length];
+        boolean[] forced = markErrors(known, frozen);
+        boolean[] gatedOut = null;
+        if (gated && gate != null) {
+            int[] ids = new int[words.length];
+            for (int i = 0; i < words.length; i++) {
+                ids[i] = cr.getWordId(words[i]);
+            }
+            gatedOut = gatedOut(ids, forced);
+        }
+        for (int i = 0; i < words.length; i++) {
+            if (frozen[i] || (gatedOut != null && gatedOut[i])) {
+                candidates[i] = NO_CANDIDATES;
             } else {
-                System.err.println("More than 2 words are NOT in the vocabulary!");
-                return "ERROR: false input. More than 2 words are NOT in the vocabulary!";
+                candidates[i] = getCandidateArray(words[i]);
             }
+        }
+        return forced;
+    }
 
-            // Check if we can continue, otherwise pretty exit
-            if (possibleSentences.isEmpty()) {
-                String undefwords = "";
-                if (wrongwords.size() >= 1) {
-                    undefwords = words[wrongwords.get(0)];
-                }
-                if (wrongwords.size() >= 2) {
-                    undefwords += " or " + words[wrongwords.get(1)];
-                }
-                return "Word " + undefwords + " does not even approach a dictionary word >:|";
+    /**
+     * Returns per word whether the gate leaves it out of the search: it is not wrong and no alternative could
+     * improve the sentence enough, see isSuspicious. Without a gate no word is left out.
+     */
+    boolean[] gatedOut(int[] ids, boolean[] forced) {
+        boolean[] gatedOut = new boolean[ids.length];
+        if (gate == null) {
+            return gatedOut;
+        }
+        // isSuspicious looks up the bigrams of the sentence itself, on a remote store in one batch
+        if (prefetchesBigrams()) {
+            LongIntHashMap batch = new LongIntHashMap();
+            for (int i = 0; i < ids.length; i++) {
+                collectBigrams(ids, i, NO_CANDIDATES, batch);
             }
+            fetchBigrams(batch);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            gatedOut[i] = !forced[i] && !isSuspicious(ids, i);
+        }
+        return gatedOut;
+    }
 
-            /**
-             * We analyze every probable combination of words, within this priority queue.
-             */
-            PriorityQueue<Sentence> resultingSentences = new PriorityQueue(possibleSentences.size(), new SentenceComparator());
+    /**
+     * Checks whether some word at position i could gain more than the margin of the gate. The bound follows
+     * calculateCorrectionScore with the suggestion's smoothed counts replaced by the highest ones any word has
+     * next to the neighbours, so a position that is not suspicious has no alternative that beats the margin.
+     */
+    boolean isSuspicious(int[] ids, int i) {
+        double ngram = (i > 0) ? gate.getMaxAfter(ids[i - 1]) : 1.0;
+        double ngram_fw = (i < ids.length - 2) ? gate.getMaxBefore(ids[i + 1]) : 1.0;
+        double ngram_old = (i > 0) ? getSmoothedCount(ids[i - 1], ids[i]) : 1.0;
+        double ngram_fw_old = (i < ids.length - 2) ? getSmoothedCount(ids[i], ids[i + 1]) : 1.0;
+
+        double bound;
+        if (i == 0) {
+            bound = (ngram_fw * ngram_fw) - (ngram_fw_old * ngram_fw_old);
+        } else if (i >= ids.length - 2) {
+            bound = (ngram * ngram) - (ngram_old * ngram_old);
+        } else {
+            bound = (ngram * ngram_fw) - (ngram_old * ngram_fw_old);
+        }
+        return bound > gate.getMargin();
+    }
 
-            if (DEBUG) {
-                System.out.println("Possible sentences: " + possibleSentences.size());
+    /**
+     * Marks the words that are not in the vocabulary as wrong. There are at most 2 erronous words of distance 1,
+     * so the words connected to a wrong word are correct: they are frozen (get no suggestions) and the word after
+     * a wrong word is not checked at all.
+     *
+     * @param known per word whether it is in the vocabulary
+     * @param frozen set to true for the neighbours of wrong words
+     * @return per word whether it is wrong, and so must be corrected
+     */
+    static boolean[] markErrors(boolean[] known, boolean[] frozen) {
+        boolean[] forced = new boolean[known.length];
+        for (int i = 0; i < known.length; i++) {
+            if (!known[i]) {
+                forced[i] = true;
+                if (i > 0) {
+                    frozen[i - 1] = true;
+                }
+                if (i < known.length - 1) {
+                    // skip next word
+                    frozen[i + 1] = true;
+                    i++;
+                }
             }
-            // We have now calculated all possible sentences, one of which is correct. Now find it.
-            for (Sentence s : possibleSentences) {
-                // Calculate probability score of a sentence
-                double c_cmp_score = calculateSentenceScore(s.getStr(), phrase);
-                s.setValue(c_cmp_score);
+        }
+        return forced;
+    }
+
+    /**
+     * Picks the best sentence of a lattice, or explains why there is none.
+     *
+     * @param lattice
+     * @return
+     */
+    String correctLattice(CorrectionLattice lattice) {
+        // this array is the indexes of the wrong words in the sentence.
+        List<Integer> wrongwords = new ArrayList<>();
+        for (int i = 0; i < lattice.size(); i++) {
+            if (lattice.isForced(i)) {
+                wrongwords.add(i);
             }
+        }
+        if (wrongwords.size() > MAX_CORRECTIONS) {
+            metrics.recordRejected();
+            System.err.println("More than 2 words are NOT in the vocabulary!");
+            return "ERROR: false input. More than 2 words are NOT in the vocabulary!";
+        }
 
-            // Pick the sentence with highest probability score
-            resultingSentences.addAll(possibleSentences);
+        // Check if we can continue, otherwise pretty exit
+        for (int w : wrongwords) {
+            if (lattice.getCandidates(w).length == 0) {
+                return "Word " + lattice.getWord(w) + " does not even approach a dictionary word >:|";
+            }
+        }
 
-            // Assume there are resulting sentences even when no word has suggestions
-            Sentence finalSentence = resultingSentences.peek();
-            finalSuggestion = finalSentence.getStr();
+        int[] choices = lattice.decode(MAX_CORRECTIONS);
+        return lattice.toSentence(choices).trim();
+    }
 
-            int size = resultingSentences.size();
-            for (int i = 0; i < Math.min(100, size); i++) {
-                Sentence s = resultingSentences.poll();
-                if (DEBUG) {
-                    System.out.println(s.getValue() + "| " + s.getStr());
-                }
+    // Scores every suggestion in its place and puts them in a lattice.
+    CorrectionLattice buildLattice(String[] words, String[][] candidates, boolean[] forced) {
+        int gap = getGap(forced);
+        double[][] scores = new double[words.length][];
+        int[] ids = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            ids[i] = cr.getWordId(words[i]);
+        }
+        if (prefetchesBigrams()) {
+            // one round trip per shard for the whole lattice
+            LongIntHashMap batch = new LongIntHashMap();
+            for (int i = 0; i < words.length; i++) {
+                collectBigrams(ids, i, candidates[i], batch);
             }
+            fetchBigrams(batch);
+        }
 
-            return finalSuggestion.trim();
+        for (int i = 0; i < words.length; i++) {
+            scores[i] = new double[candidates[i].length];
+            for (int c = 0; c < candidates[i].length; c++) {
+                scores[i][c] = calculateCorrectionScore(ids, i, cr.getWordId(candidates[i][c]), gap);
+            }
+        }
+        return new CorrectionLattice(words, candidates, scores, forced, gap);
+    }
 
-        } catch (Exception e) {
-            // Just make sure that if for some reason the previous fails, we do not die terribly.
-            return "We could not create any possible resulting sentence :'(";
+    /**
+     * Returns the number of words after a correction that must be kept, see CorrectionLattice. With Kneser-Ney
+     * smoothing it is 2, so the word two positions before a correction, its trigram context, is never corrected
+     * itself; unless two words that must be corrected are two apart, then it is 1 and the gains are scored
+     * without trigram context.
+     *
+     * @param forced per word whether it must be corrected, see markErrors
+     */
+    int getGap(boolean[] forced) {
+        if (kneserNey == null) {
+            return 1;
+        }
+        for (int i = 2; i < forced.length; i++) {
+            if (forced[i] && forced[i - 2]) {
+                return 1;
+            }
         }
+        return 2;
     }
 
-    // Small helper function to convert list of words to sentence.str
-    String to_sentence(List<String> words) {
-        if (words == null) {
-            return "";
+    /**
+     * Calculate how much the probability of the sentence improves when the word at position i is replaced by the
+     * suggestion and its neighbours are kept. This is where the magic or AI reside. With Kneser-Ney smoothing
+     * and a gap of 2 the original word two positions before is used as trigram context as well.
+     *
+     * @param ids the word ids of the sentence, see CorpusReader.getWordId
+     * @param i the position to replace
+     * @param suggestion the word id of the replacement
+     * @param gap the gap of the lattice the score is for, see getGap
+     */
+    double calculateCorrectionScore(int[] ids, int i, int suggestion, int gap) {
+        // A single word has smoothed count 1.0, so at the borders only one neighbour counts.
+        double ngram, ngram_fw, ngram_old, ngram_fw_old;
+        if (kneserNey == null) {
+            ngram = (i > 0) ? getSmoothedCount(ids[i - 1], suggestion) : 1.0;
+            ngram_fw = (i < ids.length - 2) ? getSmoothedCount(suggestion, ids[i + 1]) : 1.0;
+            ngram_old = (i > 0) ? getSmoothedCount(ids[i - 1], ids[i]) : 1.0;
+            ngram_fw_old = (i < ids.length - 2) ? getSmoothedCount(ids[i], ids[i + 1]) : 1.0;
+        } else {
+            // the word before the neighbour is trigram context, -1 makes it a bigram
+            int before = (i > 1 && gap > 1) ? ids[i - 2] : -1;
+            int previous = (i > 0) ? ids[i - 1] : -1;
+            ngram = (i > 0) ? kneserNey.getProbability(before, previous, suggestion) : 1.0;
+            ngram_fw = (i < ids.length - 2) ? kneserNey.getProbability(previous, suggestion, ids[i + 1]) : 1.0;
+            ngram_old = (i > 0) ? kneserNey.getProbability(before, previous, ids[i]) : 1.0;
+            ngram_fw_old = (i < ids.length - 2) ? kneserNey.getProbability(previous, ids[i], ids[i + 1]) : 1.0;
         }
-        StringBuilder sb = new StringBuilder();
-        for (String word : words) {
-            sb.append(word).append(" ");
+
+        double ngram_prob;
+        // Check if the replacement is better with the word before and after it.
+        if (i == 0) {
+            ngram_prob = (ngram_fw * ngram_fw) - (ngram_fw_old * ngram_fw_old);
+        } else if (i >= ids.length - 2) {
+            ngram_prob = (ngram * ngram) - (ngram_old * ngram_old);
+        } else {
+            ngram_prob = (ngram * ngram_fw) - (ngram_old * ngram_fw_old);
         }
-        return sb.toString();
+        return ngram_prob;
     }
 
-    List<String> to_list(String sentence) {
-        List<String> sentence_list = new ArrayList();
-        String words[] = sentence.split(" ");
-        for (int i = 0; i < words.length; i++) {
-            sentence_list.add(words[i]);
+    // Smoothed count of a bigram of word ids, through the cache if there is one.
+    private double getSmoothedCount(int id1, int id2) {
+        if (smoothedCountCache.getCapacity() == 0) {
+            return cr.getSmoothedCount(id1, id2);
         }
-        return sentence_list;
+        // unknown words (-1) are kept apart from id 0xffffffff by the sign bit of the key
+        Long key = ((long) id1 << 32) | (id2 & 0xffffffffL);
+        return smoothedCountCache.get(key, k -> cr.getSmoothedCount(id1, id2));
+    }
+
+    /**
+     * Returns whether the bigram counts are fetched in batches before scoring: with add-one smoothing on a
+     * remote store, and only through the cache that holds the fetched counts.
+     */
+    boolean prefetchesBigrams() {
+        return kneserNey == null && cr.isRemote() && smoothedCountCache.getCapacity() > 0;
     }
 
     /**
-     * Calculate conditional probability of the suggested sentence given the bad sentence. This is where the magic or AI
-     * reside.
+     * Adds the bigrams that calculateCorrectionScore needs for the candidates at position i to the batch, leaving
+     * out the ones that are cached and the ones with an unknown word, which need no lookup.
+     *
+     * @param batch the bigram keys, see HashNGramStore.bigramKey
      */
-    private double calculateSentenceScore(String bettersentence, String badsentence) {
-        String words[] = bettersentence.split(" ");
-        String old_words[] = badsentence.split(" ");
-        // 0.80061 8580454548-0.80061 6708438260
-        double total_prob = 0.0;
-
-        // 1. find changed words (0, 1, 2)
-        List<Integer> changedWords = new ArrayList();
-        for (int i = 0; i < Math.min(words.length, old_words.length); i++) {
-            if (words[i] == null ? old_words[i] != null : !words[i].equals(old_words[i])) {
-                changedWords.add(i);
+    void collectBigrams(int[] ids, int i, String[] candidates, LongIntHashMap batch) {
+        if (i > 0) {
+            collectBigram(ids[i - 1], ids[i], batch);
+        }
+        if (i < ids.length - 2) {
+            collectBigram(ids[i], ids[i + 1], batch);
+        }
+        for (String candidate : candidates) {
+            int suggestion = cr.getWordId(candidate);
+            if (i > 0) {
+                collectBigram(ids[i - 1], suggestion, batch);
+            }
+            if (i < ids.length - 2) {
+                collectBigram(suggestion, ids[i + 1], batch);
             }
         }
+    }
 
-        double LAMBDA = 1;
-        double prev = 1.0;
-        String prev_ngram = "";
-        String prev_ngram_old = "";
-        for (int i : changedWords) {
-            String ngram = (i > 0) ? words[i - 1] + " " + words[i] : words[i];
-            String ngram_fw = (i < words.length - 2) ? words[i] + " " + words[i + 1] : words[i];
-            String ngram_old = (i > 0) ? old_words[i - 1] + " " + old_words[i] : old_words[i];
-            String ngram_fw_old = (i < old_words.length - 2) ? old_words[i] + " " + old_words[i + 1] : old_words[i];
-
-            // Stuff I tried to use but was not very useful
-            double letters = (i > 0) ? words[i - 1].length() + words[i].length() : words[i].length();
-            double letters_old = (i > 0) ? old_words[i - 1].length() + old_words[i].length() : old_words[i].length();
-            double cm_prob = calculateChannelModelProbability(words[i], old_words[i]);
-
-            double ngram_prob;
-            // Check if the replacement is better with the word before and after it.
-            if (i == 0) {
-                ngram_prob = (cr.getSmoothedCount(ngram_fw)*cr.getSmoothedCount(ngram_fw)) - (cr.getSmoothedCount(ngram_fw_old)*cr.getSmoothedCount(ngram_fw_old));
-            } else if (i >= words.length - 2) {
-                ngram_prob = (cr.getSmoothedCount(ngram)*cr.getSmoothedCount(ngram)) - (cr.getSmoothedCount(ngram_old)*cr.getSmoothedCount(ngram_old));
-            } else {
-                ngram_prob = (cr.getSmoothedCount(ngram) * cr.getSmoothedCount(ngram_fw)) - (cr.getSmoothedCount(ngram_old) * cr.getSmoothedCount(ngram_fw_old));
-            }
-//            System.out.println("cm_prob:"+cm_prob+",smooth:"+cr.getSmoothedCount(ngram));
-//            if(DEBUG) System.out.println("P("+words[i]+"|"+old_words[i]+")="+cm_prob);
-//            double ngram_prob = cr.getSmoothedCount(ngram) / Math.log(Math.max(1.5, letters)) - cr.getSmoothedCount(ngram_old) / Math.log(Math.max(1.5, letters_old));
-            total_prob += ngram_prob;
-            prev_ngram = ngram;
-            prev_ngram_old = ngram_old;
+    private void collectBigram(int id1, int id2, LongIntHashMap batch) {
+        if (id1 < 0 || id2 < 0) {
+            return;
         }
+        // for known words the cache key is the bigram key
+        long key = HashNGramStore.bigramKey(id1, id2);
+        if (smoothedCountCache.get(key) == null) {
+            batch.put(key, 0);
+        }
+    }
 
-        return total_prob;
+    /**
+     * Looks up the bigrams of the batch at once and caches their smoothed counts.
+     */
+    void fetchBigrams(LongIntHashMap batch) {
+        long[] keys = batch.keys();
+        if (keys.length == 0) {
+            return;
+        }
+        int[] ids1 = new int[keys.length];
+        int[] ids2 = new int[keys.length];
+        for (int j = 0; j < keys.length; j++) {
+            ids1[j] = (int) (keys[j] >>> 32);
+            ids2[j] = (int) keys[j];
+        }
+        double[] smoothed = cr.getSmoothedCounts(ids1, ids2, keys.length);
+        for (int j = 0; j < keys.length; j++) {
+            smoothedCountCache.put(keys[j], smoothed[j]);
+        }
     }
 
     /*
@@ -345,30 +612,29 @@ public class SpellCorrector {
             i++;
         }
 
-        String correct_letters, incorrect_letters;
+        // The letters are looked up by character, so no substrings are needed.
+        double confcount;
 
         // suggested has deleted 1 letter at i
         if (index_incorrect + 1 < incorrect.length() && suggested.charAt(index_suggest) == incorrect.charAt(index_incorrect + 1)) {
-            correct_letters = String.valueOf(suggested.charAt(index_suggest));
-            incorrect_letters = incorrect.substring(index_incorrect, index_incorrect + 2);
+            confcount = cmr.getInsertionCount(incorrect.charAt(index_incorrect), incorrect.charAt(index_incorrect + 1),
+                    suggested.charAt(index_suggest));
 
             // suggested has inserted 1 letter at i
         } else if (index_suggest + 1 < suggested.length() && suggested.charAt(index_suggest) == incorrect.charAt(index_incorrect)) {
-            correct_letters = suggested.substring(index_suggest, index_suggest + 2);
-            incorrect_letters = String.valueOf(incorrect.charAt(index_incorrect));
+            confcount = cmr.getDeletionCount(incorrect.charAt(index_incorrect),
+                    suggested.charAt(index_suggest), suggested.charAt(index_suggest + 1));
 
             // suggested has 1 letter randomly changed, or transpositioned with next letter
         } else if (index_incorrect + 1 < incorrect.length() && index_suggest + 2 < suggested.length() && suggested.charAt(index_suggest + 1) == incorrect.charAt(index_incorrect)
                 && suggested.charAt(index_suggest) == incorrect.charAt(i + 1)) {
-            correct_letters = suggested.substring(index_suggest, index_suggest + 2);
-            incorrect_letters = incorrect.substring(index_incorrect, index_incorrect + 2);
+            confcount = cmr.getConfusionCount(incorrect.charAt(index_incorrect), incorrect.charAt(index_incorrect + 1),
+                    suggested.charAt(index_suggest), suggested.charAt(index_suggest + 1));
         } else {
-            correct_letters = String.valueOf(suggested.charAt(index_suggest));
-            incorrect_letters = String.valueOf(incorrect.charAt(index_incorrect));
+            confcount = cmr.getSubstitutionCount(incorrect.charAt(index_incorrect), suggested.charAt(index_suggest));
         }
 
         // Calculate probability that suggested is a good sugestion.
-        double confcount = cmr.getConfusionCount(incorrect_letters, correct_letters);
         // Same idea as add-one smoothing, because we want to avoid probabilities of 0.
         if (confcount == 0) {
             confcount = 1;
@@ -385,84 +651,20 @@ public class SpellCorrector {
      */
     // Collect all words from the vocabulary that have exactly edit-distance 1 to a word. 
     public HashSet<String> getCandidateWords(String word) {
-        HashSet<String> ListOfWords = new HashSet<>();
-
-        // Mess up the word in all possible ways, 
-        //  such that the call below checks which of the modified versions is in the vocabulary?
-        int wlen = word.length();
-        StringBuilder sb, sb2;
-
-        // Insertion before first letter
-        for (int k = 0; k < ALPHABET.length; k++) {
-            sb = new StringBuilder();
-            // insert random letter
-            sb.append(ALPHABET[k]);
-            for (int j = 0; j < wlen; j++) {
-                // append normal letter
-                sb.append(word.charAt(j));
-            }
-            ListOfWords.add(sb.toString());
-        }
+        return new HashSet<>(Arrays.asList(getCandidateArray(word)));
+    }
 
-        for (int letter_index = 0; letter_index < wlen; letter_index++) {
-            // deletion
-            sb = new StringBuilder();
-            for (int j = 0; j < wlen; j++) {
-                if (j != letter_index) {
-                    sb.append(word.charAt(j));
-                }
-            }
-            ListOfWords.add(sb.toString());
-
-            // transposition (swap with next letter)
-            sb = new StringBuilder();
-            for (int j = 0; j < wlen - 1; j++) {
-                if (j != letter_index) {
-                    // append normal letter
-                    sb.append(word.charAt(j));
-                } else {
-                    // insert random letter
-                    sb.append(word.charAt(j + 1));
-                    sb.append(word.charAt(j));
-                    j++; // skip one cycle since we add 2 letters at once.
-                }
-            }
-            if (sb.length() < wlen) {
-                sb.append(word.charAt(wlen - 1));
-            }
-            String sb_mashupword = sb.toString();
-            if (!sb_mashupword.equals(word)) {
-                ListOfWords.add(sb_mashupword);
-            }
+    // Same as getCandidateWords, the returned array is shared and must not be modified.
+    String[] getCandidateArray(String word) {
+        // Only the deletes of the word are generated, the index was built from the vocabulary once.
+        return candidateCache.get(word, w -> candidateIndex.lookup(w).toArray(NO_CANDIDATES));
+    }
 
-            // substitution and insertion
-            for (int k = 0; k < ALPHABET.length; k++) {
-                sb = new StringBuilder();
-                sb2 = new StringBuilder();
-                for (int j = 0; j < wlen; j++) {
-                    if (j != letter_index) {
-                        // append normal letter
-                        sb.append(word.charAt(j));
-
-                        sb2.append(word.charAt(j));
-                    } else {
-                        // substitute with random letter
-                        sb.append(ALPHABET[k]);
-
-                        // insert random letter
-                        sb2.append(word.charAt(j));
-                        sb2.append(ALPHABET[k]);
-                    }
-                }
-                sb_mashupword = sb.toString();
-                if (!sb_mashupword.equals(word)) {
-                    ListOfWords.add(sb_mashupword);
-                }
-                ListOfWords.add(sb2.toString());
-            }
-        }
+    boolean inVocabulary(String word) {
+        return cr.inVocabulary(word);
+    }
 
-        // This call returns only words which are in the vocabulary
-        return cr.inVocabulary(ListOfWords);
+    int getWordId(String word) {
+        return cr.getWordId(word);
     }
 }
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The spell checker as the benchmarks in the bench package see it, see
+ * bench.Corrector. Loads the model of the working directory (model.bin or
+ * the text files, see CorrectorHolder.loadCorpus) into a corrector without
+ * caches, so the work itself is measured.
+ *
+ * @author Tijs
+ */
+public class BenchmarkCorrector implements bench.Corrector {
+
+    final private CorpusReader cr;
+    final private SpellCorrector sc;
+
+    public BenchmarkCorrector() throws IOException {
+        cr = CorrectorHolder.loadCorpus();
+        sc = new SpellCorrector(cr, new ConfusionMatrixReader(), 0, 0);
+    }
+
+    @Override
+    public List<String> getVocabulary() {
+        List<String> words = new ArrayList<>(cr.getVocabulary());
+        Collections.sort(words);
+        return words;
+    }
+
+    @Override
+    public boolean inVocabulary(String word) {
+        return cr.inVocabulary(word);
+    }
+
+    @Override
+    public int getWordId(String word) {
+        return cr.getWordId(word);
+    }
+
+    @Override
+    public Set<String> getCandidateWords(String word) {
+        return sc.getCandidateWords(word);
+    }
+
+    @Override
+    public double calculateChannelModelProbability(String suggested, String incorrect) {
+        return sc.calculateChannelModelProbability(suggested, incorrect);
+    }
+
+    @Override
+    public double getSmoothedCount(String nGram) {
+        return cr.getSmoothedCount(nGram);
+    }
+
+    @Override
+    public double getSmoothedCount(int id1, int id2) {
+        return cr.getSmoothedCount(id1, id2);
+    }
+
+    @Override
+    public String correctPhrase(String phrase) {
+        return sc.correctPhrase(phrase);
+    }
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What the benchmarks call on the spell checker. Its classes are in the
+ * default package, which JMH does not accept for benchmarks and a named
+ * package cannot import, so BenchmarkCorrector in the default package
+ * implements this and is created by name, see create. The benchmarks then
+ * call through a plain interface, which the JIT inlines.
+ *
+ * @author Tijs
+ */
+public interface Corrector {
+
+    /**
+     * Loads the model of the working directory, see BenchmarkCorrector
+     */
+    static Corrector create() throws ReflectiveOperationException {
+        return (Corrector) Class.forName("BenchmarkCorrector").getDeclaredConstructor().newInstance();
+    }
+
+    // the vocabulary in a fixed order, so a seed gives the same inputs for every model format
+    List<String> getVocabulary();
+
+    boolean inVocabulary(String word);
+
+    int getWordId(String word);
+
+    Set<String> getCandidateWords(String word);
+
+    double calculateChannelModelProbability(String suggested, String incorrect);
+
+    double getSmoothedCount(String nGram);
+
+    double getSmoothedCount(int id1, int id2);
+
+    String correctPhrase(String phrase);
+}
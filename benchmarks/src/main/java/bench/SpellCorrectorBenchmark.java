@@ -0,0 +1,240 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of candidate generation, the channel model, smoothing and
+ * end-to-end correction, on the model of the working directory through
+ * Corrector. The corrector has no caches, so the work itself is measured. The
+ * inputs are drawn from the vocabulary with a fixed seed, so every run and
+ * fork sees the same ones. correctTestSentence corrects the phrases of
+ * test-sentences.txt instead. Every benchmark reports both its throughput
+ * and its average time per call.
+ *
+ * Build from the root with mvn -B package, then run from AISpellCheckerTUe,
+ * next to the model files:
+ *
+ * java -jar ../benchmarks/target/benchmarks.jar -prof gc
+ *
+ * -prof gc adds the allocation rate and the bytes per operation
+ * (gc.alloc.rate.norm) to every result. A regex after the jar selects
+ * benchmarks, e.g. SpellCorrectorBenchmark.correctPhrase, and -p oov=2
+ * narrows a parameter. Compare runs by their scores and error bounds, e.g.
+ * saved with -rf json -rff before.json.
+ *
+ * @author Tijs
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Benchmark)
+public class SpellCorrectorBenchmark {
+
+    final static int INPUTS = 1000;
+    final static int PHRASES = 50;
+    final static long SEED = 42;
+
+    Corrector corrector;
+    List<String> vocabulary;
+    List<String> words = new ArrayList<>();
+    List<String> misspelled = new ArrayList<>();
+    // two words run together that are no word, which most deletes of the index reject
+    List<String> longTokens = new ArrayList<>();
+    // a candidate and the misspelled word it is a candidate of
+    List<String[]> pairs = new ArrayList<>();
+    List<String> bigrams = new ArrayList<>();
+    List<int[]> bigramIds = new ArrayList<>();
+
+    /**
+     * The position in the inputs of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next = 0;
+
+        <T> T next(List<T> inputs) {
+            T input = inputs.get(next);
+            next = (next + 1) % inputs.size();
+            return input;
+        }
+    }
+
+    /**
+     * The words getCandidateWords is asked for
+     */
+    @State(Scope.Benchmark)
+    public static class Words {
+
+        @Param({"in-vocabulary", "misspelled", "long-oov"})
+        String kind;
+
+        List<String> words;
+
+        @Setup
+        public void select(SpellCorrectorBenchmark model) {
+            switch (kind) {
+                case "in-vocabulary":
+                    words = model.words;
+                    break;
+                case "misspelled":
+                    words = model.misspelled;
+                    break;
+                default:
+                    words = model.longTokens;
+            }
+        }
+    }
+
+    /**
+     * Phrases of vocabulary words with oov of them misspelled, never two
+     * neighbours
+     */
+    @State(Scope.Benchmark)
+    public static class Phrases {
+
+        @Param({"0", "1", "2"})
+        int oov;
+
+        @Param({"5", "10", "20", "40"})
+        int length;
+
+        List<String> phrases = new ArrayList<>();
+
+        @Setup
+        public void generate(SpellCorrectorBenchmark model) {
+            Random random = new Random(SEED + 31 * oov + length);
+            for (int p = 0; p < PHRASES; p++) {
+                String[] phrase = new String[length];
+                for (int i = 0; i < length; i++) {
+                    phrase[i] = model.vocabulary.get(random.nextInt(model.vocabulary.size()));
+                }
+                // positions 0, 3, 6, ... are never adjacent
+                List<Integer> positions = new ArrayList<>();
+                for (int i = 0; i < length; i += 3) {
+                    positions.add(i);
+                }
+                Collections.shuffle(positions, random);
+                for (int e = 0; e < oov; e++) {
+                    int i = positions.get(e);
+                    phrase[i] = misspell(phrase[i], model.corrector, random);
+                }
+                phrases.add(String.join(" ", phrase));
+            }
+        }
+    }
+
+    /**
+     * The phrases of test-sentences.txt, the part before the = of every line
+     * that is not empty or a # comment
+     */
+    @State(Scope.Benchmark)
+    public static class TestSentences {
+
+        List<String> phrases = new ArrayList<>();
+
+        @Setup
+        public void read() throws IOException {
+            for (String line : Files.readAllLines(Paths.get("test-sentences.txt"), StandardCharsets.UTF_8)) {
+                String trimmedline = line.trim();
+                if (!trimmedline.isEmpty() && !trimmedline.startsWith("#")) {
+                    phrases.add(trimmedline.split("=")[0]);
+                }
+            }
+        }
+    }
+
+    @Setup
+    public void load() throws ReflectiveOperationException {
+        corrector = Corrector.create();
+        vocabulary = corrector.getVocabulary();
+
+        Random random = new Random(SEED);
+        for (int i = 0; i < INPUTS; i++) {
+            String word = vocabulary.get(random.nextInt(vocabulary.size()));
+            words.add(word);
+            misspelled.add(misspell(word, corrector, random));
+        }
+        while (longTokens.size() < INPUTS) {
+            String token = words.get(random.nextInt(words.size())) + words.get(random.nextInt(words.size()));
+            if (token.length() >= 12 && !corrector.inVocabulary(token)) {
+                longTokens.add(token);
+            }
+        }
+        for (String word : misspelled) {
+            for (String candidate : corrector.getCandidateWords(word)) {
+                pairs.add(new String[]{candidate, word});
+            }
+        }
+        for (int i = 0; i + 1 < words.size(); i++) {
+            bigrams.add(words.get(i) + " " + words.get(i + 1));
+            bigramIds.add(new int[]{corrector.getWordId(words.get(i)), corrector.getWordId(words.get(i + 1))});
+        }
+    }
+
+    // A single substitution of word that is not in the vocabulary.
+    static String misspell(String word, Corrector corrector, Random random) {
+        for (int attempt = 0; attempt < 100 && !word.isEmpty(); attempt++) {
+            int i = random.nextInt(word.length());
+            String result = word.substring(0, i) + (char) ('a' + random.nextInt(26)) + word.substring(i + 1);
+            if (!corrector.inVocabulary(result)) {
+                return result;
+            }
+        }
+        return word + "qx";
+    }
+
+    @Benchmark
+    public Set<String> getCandidateWords(Words words, Cursor cursor) {
+        return corrector.getCandidateWords(cursor.next(words.words));
+    }
+
+    @Benchmark
+    public double calculateChannelModelProbability(Cursor cursor) {
+        String[] pair = cursor.next(pairs);
+        return corrector.calculateChannelModelProbability(pair[0], pair[1]);
+    }
+
+    @Benchmark
+    public double getSmoothedCountString(Cursor cursor) {
+        return corrector.getSmoothedCount(cursor.next(bigrams));
+    }
+
+    @Benchmark
+    public double getSmoothedCountIds(Cursor cursor) {
+        int[] ids = cursor.next(bigramIds);
+        return corrector.getSmoothedCount(ids[0], ids[1]);
+    }
+
+    @Benchmark
+    public String correctPhrase(Phrases phrases, Cursor cursor) {
+        return corrector.correctPhrase(cursor.next(phrases.phrases));
+    }
+
+    @Benchmark
+    public String correctTestSentence(TestSentences sentences, Cursor cursor) {
+        return corrector.correctPhrase(cursor.next(sentences.phrases));
+    }
+}